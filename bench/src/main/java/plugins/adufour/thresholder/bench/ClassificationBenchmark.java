@@ -0,0 +1,87 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import plugins.adufour.thresholder.ThresholdKernels;
+
+/**
+ * Classification of float pixels by linear scan ({@link ThresholdKernels#classOf(double, double[])},
+ * the original loop) and by branchless binary search
+ * ({@link ThresholdKernels#classOfSorted(double, double[])}), across numbers of classes. Both are
+ * called directly, whatever the number of thresholds from which the kernels switch to the binary
+ * search. Times are given per pixel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassificationBenchmark
+{
+    static final int NB_PIXELS = 1 << 16;
+
+    @Param({ "2", "4", "16", "64" })
+    public int       classes;
+
+    private float[]  pixels;
+
+    private double[] thresholds;
+
+    @Setup
+    public void setUp()
+    {
+        // evenly spaced thresholds, and pixels spread uniformly over all classes
+        thresholds = new double[classes - 1];
+        for (int i = 0; i < thresholds.length; i++)
+            thresholds[i] = (i + 1.0) / classes;
+
+        Random random = new Random(0);
+
+        pixels = new float[NB_PIXELS];
+        for (int i = 0; i < NB_PIXELS; i++)
+            pixels[i] = random.nextFloat();
+
+        for (int i = 0; i < NB_PIXELS; i++)
+            if (ThresholdKernels.classOf(pixels[i], thresholds) != ThresholdKernels.classOfSorted(pixels[i], thresholds))
+                throw new IllegalStateException("Classes differ for value " + pixels[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_PIXELS)
+    public int linearScan()
+    {
+        int sum = 0;
+
+        for (float pixel : pixels)
+            sum += ThresholdKernels.classOf(pixel, thresholds);
+
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_PIXELS)
+    public int binarySearch()
+    {
+        int sum = 0;
+
+        for (float pixel : pixels)
+            sum += ThresholdKernels.classOfSorted(pixel, thresholds);
+
+        return sum;
+    }
+}
@@ -0,0 +1,62 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import plugins.adufour.thresholder.KMeans;
+
+/**
+ * K-means clustering of a histogram ({@link KMeans#kMeans_Histogram1D(double[], int)}) across
+ * numbers of bins and classes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KMeansHistogramBenchmark
+{
+    @Param({ "256", "4096", "65536" })
+    public int bins;
+
+    @Param({ "2", "3", "5" })
+    public int classes;
+
+    private double[] histogram;
+
+    @Setup
+    public void setUp()
+    {
+        // tri-modal histogram, similar to that of the synthetic sequences
+        histogram = new double[bins];
+
+        for (int i = 0; i < bins; i++)
+        {
+            double x = (double) i / bins;
+            histogram[i] = 1000 * (gaussian(x, 0.1) + gaussian(x, 0.4) + gaussian(x, 0.7));
+        }
+    }
+
+    @Benchmark
+    public int[] kMeansHistogram1D()
+    {
+        return KMeans.kMeans_Histogram1D(histogram, classes);
+    }
+
+    private static double gaussian(double x, double mean)
+    {
+        return Math.exp(-(x - mean) * (x - mean) / (2 * 0.05 * 0.05));
+    }
+}
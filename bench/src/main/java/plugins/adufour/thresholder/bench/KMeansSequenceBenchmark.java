@@ -0,0 +1,47 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.Histogram;
+import plugins.adufour.thresholder.KMeans;
+
+/**
+ * Histogram computation ({@link Histogram#compute(Sequence, int, int, int)}) and K-means
+ * thresholds ({@link KMeans#computeKMeansThresholds(Sequence, int, int, int)}) on synthetic
+ * sequences, across data types, sizes and numbers of classes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KMeansSequenceBenchmark
+{
+    @Param({ "2", "3", "5" })
+    public int classes;
+
+    @Benchmark
+    public Histogram histogram(SequenceState state)
+    {
+        return Histogram.compute(state.sequence, 0, -1, KMeans.DEFAULT_KMEANS_BINS);
+    }
+
+    @Benchmark
+    public double[] computeKMeansThresholds(SequenceState state)
+    {
+        return KMeans.computeKMeansThresholds(state.sequence, 0, classes, KMeans.DEFAULT_KMEANS_BINS);
+    }
+}
@@ -0,0 +1,127 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.thresholder.ThresholdKernels;
+
+/**
+ * Labeling of a single slice by the type-specialized kernels
+ * ({@link ThresholdKernels#label(Object, Object, DataType, double[], int, int)}), against the
+ * original per-pixel loop going through {@link Array1DUtil} for every read and write (the
+ * reference), for every data type. The labels of both versions are compared before measuring
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelingBenchmark
+{
+    @Param({ "UBYTE", "BYTE", "USHORT", "SHORT", "UINT", "INT", "FLOAT", "DOUBLE" })
+    public DataType type;
+
+    /**
+     * width (and height) of the slice
+     */
+    @Param({ "2048" })
+    public int      size;
+
+    @Param({ "1", "3" })
+    public int      nbThresholds;
+
+    private Object  in, out;
+
+    private double[] thresholds;
+
+    @Setup
+    public void setUp()
+    {
+        in = SyntheticSequences.create(type, size, 1, 1).getDataXY(0, 0, 0);
+
+        // evenly spread over the synthetic range
+        double range = SyntheticSequences.getRange(type);
+        thresholds = new double[nbThresholds];
+        for (int i = 0; i < nbThresholds; i++)
+            thresholds[i] = range * (i + 1) / (nbThresholds + 1);
+
+        out = Array1DUtil.createArray(type, size * size);
+        Object expected = Array1DUtil.createArray(type, size * size);
+
+        reference(in, expected, type, thresholds, size * size);
+        ThresholdKernels.label(in, out, type, thresholds, 0, size * size);
+
+        for (int i = 0; i < size * size; i++)
+            if (Array1DUtil.getValue(out, i, type) != Array1DUtil.getValue(expected, i, type))
+                throw new IllegalStateException(type + ": labels differ at pixel " + i + " (thresholds: " + Arrays.toString(thresholds) + ")");
+    }
+
+    @Benchmark
+    public Object kernel()
+    {
+        ThresholdKernels.label(in, out, type, thresholds, 0, size * size);
+        return out;
+    }
+
+    @Benchmark
+    public Object reference()
+    {
+        reference(in, out, type, thresholds, size * size);
+        return out;
+    }
+
+    /**
+     * The per-pixel loop of Thresholder.threshold() before the specialized kernels (output of the
+     * same data type as the input, initially filled with zeros)
+     */
+    private static void reference(Object in, Object out, DataType dataType, double[] thresholds, int length)
+    {
+        double thr0 = thresholds[0];
+        int maxThresholdIndex = thresholds.length - 1;
+
+        withTheNextPixel:
+        for (int i = 0; i < length; i++)
+        {
+            double val = Array1DUtil.getValue(in, i, dataType);
+
+            // background
+            if (val < thr0)
+            {
+                Array1DUtil.setValue(out, i, dataType, 0);
+                continue withTheNextPixel;
+            }
+            // special 2-class case
+            if (maxThresholdIndex == 0)
+            {
+                Array1DUtil.setValue(out, i, dataType, 1);
+                continue withTheNextPixel;
+            }
+
+            // browse thresholds from highest to lowest (above 1 to save one test)
+            for (int thr = maxThresholdIndex; thr > 0; thr--)
+                if (val >= thresholds[thr])
+                {
+                    Array1DUtil.setValue(out, i, dataType, thr + 1);
+                    continue withTheNextPixel;
+                }
+
+            // last possible case: class 1
+            Array1DUtil.setValue(out, i, dataType, 1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package plugins.adufour.thresholder.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Synthetic in-memory sequence (see {@link SyntheticSequences}) shared by the sequence
+ * benchmarks, across data types and sizes
+ */
+@State(Scope.Benchmark)
+public class SequenceState
+{
+    static final int        SIZE_Z           = 8;
+
+    static final int        SIZE_T           = 1;
+
+    /**
+     * thresholds separating the synthetic populations (as fractions of the data range)
+     */
+    static final double[]   THRESHOLD_LEVELS = { 0.25, 0.55 };
+
+    @Param({ "UBYTE", "USHORT", "FLOAT" })
+    public DataType         type;
+
+    /**
+     * width (and height) of the slices
+     */
+    @Param({ "256", "1024" })
+    public int              size;
+
+    Sequence                sequence;
+
+    /**
+     * thresholds separating the synthetic populations
+     */
+    double[]                thresholds;
+
+    @Setup
+    public void setUp()
+    {
+        sequence = SyntheticSequences.create(type, size, SIZE_Z, SIZE_T);
+
+        double range = SyntheticSequences.getRange(type);
+
+        thresholds = new double[THRESHOLD_LEVELS.length];
+        for (int i = 0; i < thresholds.length; i++)
+            thresholds[i] = THRESHOLD_LEVELS[i] * range;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        sequence = null;
+    }
+}
@@ -0,0 +1,109 @@
+package plugins.adufour.thresholder.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.adufour.thresholder.KMeans;
+import plugins.adufour.thresholder.RawPlaneSource;
+import plugins.adufour.thresholder.RawPlaneStore;
+import plugins.adufour.thresholder.StreamingThresholder;
+
+/**
+ * Out-of-core pipeline ({@link StreamingThresholder}: histogram, K-means and labeling) on a raw
+ * file written to the temporary directory, across data types and sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamingBenchmark
+{
+    @Param({ "UBYTE", "USHORT", "FLOAT" })
+    public DataType        type;
+
+    @Param({ "256", "1024" })
+    public int             size;
+
+    private File           input, output;
+
+    private RawPlaneSource source;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        Sequence sequence = SyntheticSequences.create(type, size, SequenceState.SIZE_Z, SequenceState.SIZE_T);
+
+        // write the synthetic data to disk, and read it back plane by plane
+        input = File.createTempFile("thresholder-bench", ".raw");
+        output = File.createTempFile("thresholder-bench", ".labels");
+
+        RawPlaneStore writer = new RawPlaneStore(input, size, size, SequenceState.SIZE_Z, SequenceState.SIZE_T, type, ByteOrder.nativeOrder());
+        try
+        {
+            for (int t = 0; t < SequenceState.SIZE_T; t++)
+                for (int z = 0; z < SequenceState.SIZE_Z; z++)
+                    writer.writePlane(t, z, sequence.getDataXY(t, z, 0));
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        source = new RawPlaneSource(input, size, size, SequenceState.SIZE_Z, SequenceState.SIZE_T, type, ByteOrder.nativeOrder(), 0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        try
+        {
+            if (source != null) source.close();
+        }
+        finally
+        {
+            if (input != null) input.delete();
+            if (output != null) output.delete();
+        }
+    }
+
+    @Benchmark
+    public double[][] streamingKMeans() throws IOException
+    {
+        int nbThreads = Runtime.getRuntime().availableProcessors();
+        StreamingThresholder thresholder = new StreamingThresholder(source, StreamingThresholder.DEFAULT_PLANES_IN_FLIGHT, nbThreads);
+
+        double[][] thresholdsT = thresholder.computeKMeansThresholds(false, SequenceState.THRESHOLD_LEVELS.length + 1, KMeans.DEFAULT_KMEANS_BINS);
+
+        DataType labelType = StreamingThresholder.getLabelDataType(thresholdsT);
+        RawPlaneStore store = new RawPlaneStore(output, size, size, SequenceState.SIZE_Z, SequenceState.SIZE_T, labelType, ByteOrder.nativeOrder());
+        try
+        {
+            thresholder.label(thresholdsT, store);
+        }
+        finally
+        {
+            store.close();
+        }
+
+        return thresholdsT;
+    }
+}
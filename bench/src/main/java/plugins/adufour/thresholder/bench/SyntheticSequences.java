@@ -0,0 +1,116 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.Random;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * In-memory test sequences with reproducible content: a background and two brighter populations
+ * of pixels (Gaussian intensities), i.e. a tri-modal histogram
+ */
+public final class SyntheticSequences
+{
+    private SyntheticSequences()
+    {
+    }
+
+    /**
+     * Creates a single-channel sequence
+     *
+     * @param dataType
+     *            the data type of the sequence
+     * @param sizeXY
+     *            the width and height of each slice
+     * @param sizeZ
+     *            the number of slices
+     * @param sizeT
+     *            the number of frames
+     * @return the sequence
+     */
+    public static Sequence create(DataType dataType, int sizeXY, int sizeZ, int sizeT)
+    {
+        Sequence sequence = new Sequence("synthetic " + dataType + " " + sizeXY + "x" + sizeXY + "x" + sizeZ + "x" + sizeT);
+
+        Random random = new Random(sizeXY * 31L + sizeZ * 7L + sizeT);
+
+        // class means and spread, as fractions of the data range
+        double[] means = { 0.1, 0.4, 0.7 };
+        double spread = 0.05;
+
+        double range = getRange(dataType);
+
+        sequence.beginUpdate();
+
+        try
+        {
+            for (int t = 0; t < sizeT; t++)
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    IcyBufferedImage image = new IcyBufferedImage(sizeXY, sizeXY, 1, dataType);
+                    Object data = image.getDataXY(0);
+
+                    for (int i = 0; i < sizeXY * sizeXY; i++)
+                    {
+                        double value = (means[random.nextInt(means.length)] + random.nextGaussian() * spread) * range;
+                        set(data, dataType, i, Math.max(0, Math.min(range, value)));
+                    }
+
+                    sequence.setImage(t, z, image);
+                }
+        }
+        finally
+        {
+            sequence.endUpdate();
+        }
+
+        return sequence;
+    }
+
+    /**
+     * @return the range of the synthetic values for the given data type (values lie between 0 and
+     *         this range)
+     */
+    static double getRange(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+            return 127;
+        case USHORT:
+        case SHORT:
+            return 4095;
+        default:
+            return 65535;
+        }
+    }
+
+    private static void set(Object data, DataType dataType, int i, double value)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+            ((byte[]) data)[i] = (byte) value;
+            break;
+        case USHORT:
+        case SHORT:
+            ((short[]) data)[i] = (short) value;
+            break;
+        case UINT:
+        case INT:
+            ((int[]) data)[i] = (int) value;
+            break;
+        case FLOAT:
+            ((float[]) data)[i] = (float) value;
+            break;
+        case DOUBLE:
+            ((double[]) data)[i] = value;
+            break;
+        default:
+            throw new UnsupportedOperationException("Unsupported data type: " + dataType);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package plugins.adufour.thresholder.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.Thresholder;
+
+/**
+ * Thresholding of synthetic sequences into a labeled sequence
+ * ({@link Thresholder#threshold(Sequence, int, double[], boolean)}) and into ROI
+ * ({@link Thresholder#threshold(Sequence, int, double[])}), across data types and sizes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThresholdBenchmark
+{
+    @Benchmark
+    public Sequence thresholdSequence(SequenceState state)
+    {
+        return Thresholder.threshold(state.sequence, 0, state.thresholds, false);
+    }
+
+    @Benchmark
+    public ROI[] thresholdROI(SequenceState state)
+    {
+        return Thresholder.threshold(state.sequence, 0, state.thresholds);
+    }
+}
@@ -0,0 +1,248 @@
+package plugins.adufour.thresholder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.adufour.thresholder.bench.SyntheticSequences;
+
+/**
+ * Checks the out-of-core pipeline ({@link StreamingThresholder}) on a multi-plane raw file written
+ * to the temporary directory: the thresholds and labels must be those computed in memory (see
+ * {@link KMeans} and {@link Thresholder#threshold(Sequence, int, double[][], boolean, int)}), and
+ * no more than the given number of planes may be held at once
+ */
+public class StreamingThresholderTest
+{
+    static final int SIZE_XY          = 96;
+
+    static final int SIZE_Z           = 5;
+
+    static final int SIZE_T           = 3;
+
+    static final int PLANES_IN_FLIGHT = 4;
+
+    static final int NB_THREADS       = 3;
+
+    static final int NB_CLASSES       = 3;
+
+    private File     input, output;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        input = File.createTempFile("thresholder-test", ".raw");
+        output = File.createTempFile("thresholder-test", ".labels");
+    }
+
+    @After
+    public void tearDown()
+    {
+        input.delete();
+        output.delete();
+    }
+
+    @Test
+    public void unsignedByte() throws IOException
+    {
+        check(DataType.UBYTE);
+    }
+
+    @Test
+    public void unsignedShort() throws IOException
+    {
+        check(DataType.USHORT);
+    }
+
+    @Test
+    public void floatingPoint() throws IOException
+    {
+        check(DataType.FLOAT);
+    }
+
+    private void check(DataType dataType) throws IOException
+    {
+        Sequence sequence = SyntheticSequences.create(dataType, SIZE_XY, SIZE_Z, SIZE_T);
+
+        RawPlaneStore writer = new RawPlaneStore(input, SIZE_XY, SIZE_XY, SIZE_Z, SIZE_T, dataType, ByteOrder.nativeOrder());
+        try
+        {
+            for (int t = 0; t < SIZE_T; t++)
+                for (int z = 0; z < SIZE_Z; z++)
+                    writer.writePlane(t, z, sequence.getDataXY(t, z, 0));
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        RawPlaneSource file = new RawPlaneSource(input, SIZE_XY, SIZE_XY, SIZE_Z, SIZE_T, dataType, ByteOrder.nativeOrder(), 0);
+
+        try
+        {
+            CountingSource source = new CountingSource(file);
+            StreamingThresholder thresholder = new StreamingThresholder(source, PLANES_IN_FLIGHT, NB_THREADS);
+
+            // thresholds of each frame
+            double[][] thresholdsT = thresholder.computeKMeansThresholds(true, NB_CLASSES, KMeans.DEFAULT_KMEANS_BINS);
+
+            assertEquals(SIZE_T, thresholdsT.length);
+            for (int t = 0; t < SIZE_T; t++)
+                assertArrayEquals(dataType + ", frame " + t, KMeans.computeKMeansThresholds(sequence, 0, t, NB_CLASSES, KMeans.DEFAULT_KMEANS_BINS),
+                        thresholdsT[t], 0);
+
+            // labels
+            DataType labelType = StreamingThresholder.getLabelDataType(thresholdsT);
+            MappedLabelStore store = MappedLabelStore.create(output, SIZE_XY, SIZE_XY, SIZE_Z, SIZE_T, labelType);
+
+            try
+            {
+                thresholder.label(thresholdsT, new CountingStore(store, source));
+            }
+            finally
+            {
+                store.close();
+            }
+
+            assertEquals(dataType + ": planes read", SIZE_Z * SIZE_T, source.reads.get());
+            assertTrue(dataType + ": " + source.maxInFlight.get() + " planes in flight", source.maxInFlight.get() <= PLANES_IN_FLIGHT);
+
+            Sequence expected = Thresholder.threshold(sequence, 0, thresholdsT, false, 1);
+            assertEquals(labelType, expected.getDataType_());
+
+            MappedLabelStore labels = MappedLabelStore.open(output, true);
+
+            try
+            {
+                assertEquals(SIZE_T, labels.getSizeT());
+                assertEquals(SIZE_Z, labels.getSizeZ());
+
+                for (int t = 0; t < SIZE_T; t++)
+                    for (int z = 0; z < SIZE_Z; z++)
+                        assertArrayEquals(dataType + ", plane " + t + "/" + z, (byte[]) expected.getDataXY(t, z, 0), (byte[]) labels.readPlane(t, z));
+            }
+            finally
+            {
+                labels.close();
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Counts the planes read but not labeled yet (i.e. held in memory while labeling)
+     */
+    private static class CountingSource implements PlaneSource
+    {
+        final PlaneSource   source;
+
+        final AtomicInteger reads       = new AtomicInteger();
+
+        final AtomicInteger inFlight    = new AtomicInteger();
+
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        CountingSource(PlaneSource source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public int getSizeX()
+        {
+            return source.getSizeX();
+        }
+
+        @Override
+        public int getSizeY()
+        {
+            return source.getSizeY();
+        }
+
+        @Override
+        public int getSizeZ()
+        {
+            return source.getSizeZ();
+        }
+
+        @Override
+        public int getSizeT()
+        {
+            return source.getSizeT();
+        }
+
+        @Override
+        public DataType getDataType()
+        {
+            return source.getDataType();
+        }
+
+        @Override
+        public Object readPlane(int t, int z) throws IOException
+        {
+            int planes = inFlight.incrementAndGet();
+
+            synchronized (maxInFlight)
+            {
+                if (planes > maxInFlight.get()) maxInFlight.set(planes);
+            }
+
+            reads.incrementAndGet();
+            return source.readPlane(t, z);
+        }
+    }
+
+    /**
+     * Releases the planes of a {@link CountingSource} as they are written
+     */
+    private static class CountingStore implements PlaneStore
+    {
+        final PlaneStore     store;
+
+        final CountingSource source;
+
+        CountingStore(PlaneStore store, CountingSource source)
+        {
+            this.store = store;
+            this.source = source;
+
+            // only the labeling pass is counted
+            source.reads.set(0);
+            source.inFlight.set(0);
+            source.maxInFlight.set(0);
+        }
+
+        @Override
+        public DataType getDataType()
+        {
+            return store.getDataType();
+        }
+
+        @Override
+        public void writePlane(int t, int z, Object labels) throws IOException
+        {
+            store.writePlane(t, z, labels);
+            source.inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package plugins.adufour.thresholder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.ConnectedComponents.Connectivity;
+import plugins.adufour.thresholder.Thresholder.ThresholdMethod;
+import plugins.adufour.thresholder.Thresholder.ThresholdOutput;
+
+/**
+ * Applies the same thresholding to many sequences (e.g. the wells of a screening plate), rather
+ * than running one {@link Thresholder} per sequence.<br>
+ * Sequences are loaded by a pool of I/O threads, and thresholded by a separate pool of processing
+ * threads (each sequence being processed by a single thread), so that loading the next sequences
+ * overlaps with processing the previous ones. At most <code>maxPending</code> sequences are loaded
+ * or being processed at any time: the caller blocks until a result has been delivered before
+ * loading more, so that the memory footprint does not depend on the number of sequences.<br>
+ * Results are delivered to a {@link Callback} as soon as they are ready (i.e. not necessarily in
+ * the order of the input)
+ */
+public class BatchThresholder
+{
+    /**
+     * Receives the results of a batch. Callbacks are never called concurrently
+     */
+    public interface Callback
+    {
+        /**
+         * Called when a sequence has been thresholded
+         *
+         * @param index
+         *            the position of the sequence in the input
+         * @param input
+         *            the thresholded sequence
+         * @param result
+         *            the thresholds and output of the sequence
+         */
+        void completed(int index, Sequence input, Result result);
+
+        /**
+         * Called when a sequence could not be loaded or thresholded
+         *
+         * @param index
+         *            the position of the sequence in the input
+         * @param error
+         *            the cause of the failure
+         */
+        void failed(int index, Throwable error);
+    }
+
+    /**
+     * Thresholds and output of a sequence of the batch
+     */
+    public static class Result
+    {
+        private final double[][] thresholds;
+
+        private final Sequence   labels;
+
+        private final ROI[]      rois;
+
+        Result(double[][] thresholds, Sequence labels, ROI[] rois)
+        {
+            this.thresholds = thresholds;
+            this.labels = labels;
+            this.rois = rois;
+        }
+
+        /**
+         * @return the thresholds of each frame
+         */
+        public double[][] getThresholds()
+        {
+            return thresholds;
+        }
+
+        /**
+         * @return the labeled sequence (for {@link ThresholdOutput#SEQUENCE}), or null
+         */
+        public Sequence getLabels()
+        {
+            return labels;
+        }
+
+        /**
+         * @return the output ROI (for {@link ThresholdOutput#ROI} and
+         *         {@link ThresholdOutput#MULTI_ROI}), or null
+         */
+        public ROI[] getROIs()
+        {
+            return rois;
+        }
+    }
+
+    /**
+     * Default maximum number of sequences loaded or processed at once
+     */
+    public static final int DEFAULT_MAX_PENDING = 2 * SliceExecutor.getDefaultThreadCount();
+
+    private final int       loadingThreads;
+
+    private final int       processingThreads;
+
+    private final int       maxPending;
+
+    private int             channel         = 0;
+
+    private ThresholdMethod method          = ThresholdMethod.K_MEANS;
+
+    private int             nbClasses       = 2;
+
+    private int             nbBins          = KMeans.DEFAULT_KMEANS_BINS;
+
+    private double[]        manualThresholds;
+
+    private boolean         percentiles;
+
+    private boolean         timeDependent;
+
+    private ThresholdOutput output          = ThresholdOutput.SEQUENCE;
+
+    private Connectivity    connectivity    = Connectivity.FACES;
+
+    /**
+     * Creates a batch thresholder (K-means with 2 classes on the first channel, producing labeled
+     * sequences, unless configured otherwise)
+     *
+     * @param loadingThreads
+     *            the number of threads loading the sequences
+     * @param processingThreads
+     *            the number of threads thresholding the sequences
+     * @param maxPending
+     *            the maximum number of sequences loaded or being processed at once
+     */
+    public BatchThresholder(int loadingThreads, int processingThreads, int maxPending)
+    {
+        if (loadingThreads < 1 || processingThreads < 1) throw new IllegalArgumentException("Thresholder: at least one thread is needed");
+        if (maxPending < 1) throw new IllegalArgumentException("Thresholder: at least one sequence must be processed at once");
+
+        this.loadingThreads = loadingThreads;
+        this.processingThreads = processingThreads;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @param c
+     *            the channel to threshold
+     * @return this batch thresholder
+     */
+    public BatchThresholder setChannel(int c)
+    {
+        this.channel = c;
+        return this;
+    }
+
+    /**
+     * Computes the thresholds of each sequence with K-means (see
+     * {@link KMeans#computeKMeansThresholds(Histogram, int, int)}) or multi-level Otsu (see
+     * {@link MultiOtsu#computeOtsuThresholds(Histogram, int, int)})
+     *
+     * @param method
+     *            {@link ThresholdMethod#K_MEANS} or {@link ThresholdMethod#OTSU}
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return this batch thresholder
+     */
+    public BatchThresholder setAutomaticThresholds(ThresholdMethod method, int nbClasses, int nbBins)
+    {
+        if (method == ThresholdMethod.MANUAL) throw new IllegalArgumentException("Thresholder: use setManualThresholds() for manual thresholds");
+
+        this.method = method;
+        this.nbClasses = nbClasses;
+        this.nbBins = nbBins;
+        return this;
+    }
+
+    /**
+     * Uses the same thresholds for all sequences
+     *
+     * @param thresholds
+     *            the thresholds, or intensity percentiles (between 0 and 100) of each sequence
+     * @param percentiles
+     *            true if the thresholds are percentiles
+     * @return this batch thresholder
+     */
+    public BatchThresholder setManualThresholds(double[] thresholds, boolean percentiles)
+    {
+        if (thresholds == null || thresholds.length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+
+        if (percentiles)
+        {
+            for (double threshold : thresholds)
+                if (threshold < 0.0 || threshold > 100.0) throw new IllegalArgumentException("Thresholder: percentile(s) must be between 0 and 100");
+        }
+
+        this.method = ThresholdMethod.MANUAL;
+        this.manualThresholds = thresholds.clone();
+        this.percentiles = percentiles;
+        return this;
+    }
+
+    /**
+     * @param timeDependent
+     *            true to compute the (automatic or percentile) thresholds of each frame
+     *            independently
+     * @return this batch thresholder
+     */
+    public BatchThresholder setTimeDependent(boolean timeDependent)
+    {
+        this.timeDependent = timeDependent;
+        return this;
+    }
+
+    /**
+     * @param output
+     *            the output of each sequence
+     * @param connectivity
+     *            the neighborhood connecting two pixels (for {@link ThresholdOutput#MULTI_ROI})
+     * @return this batch thresholder
+     */
+    public BatchThresholder setOutput(ThresholdOutput output, Connectivity connectivity)
+    {
+        this.output = output;
+        this.connectivity = connectivity;
+        return this;
+    }
+
+    /**
+     * Thresholds the given sequences (already in memory)
+     *
+     * @param sequences
+     *            the sequences to threshold
+     * @param callback
+     *            the callback receiving the results
+     * @return the number of sequences processed
+     */
+    public int process(Collection<? extends Sequence> sequences, Callback callback)
+    {
+        List<Callable<Sequence>> loaders = new ArrayList<Callable<Sequence>>(sequences.size());
+
+        for (final Sequence sequence : sequences)
+        {
+            loaders.add(new Callable<Sequence>()
+            {
+                @Override
+                public Sequence call()
+                {
+                    return sequence;
+                }
+            });
+        }
+
+        return process(loaders.iterator(), callback);
+    }
+
+    /**
+     * Loads and thresholds sequences, and waits until all the results have been delivered. The
+     * input is only read when there is room for another sequence, hence it may be a lazy
+     * iterator, e.g. over a stream of files (<code>stream.iterator()</code>)
+     *
+     * @param loaders
+     *            the tasks loading each sequence (called in the I/O threads)
+     * @param callback
+     *            the callback receiving the results
+     * @return the number of sequences processed
+     * @throws RuntimeException
+     *             if the callback has thrown an exception (no further sequence is loaded, and the
+     *             sequences in progress are completed before the exception is rethrown)
+     */
+    public int process(Iterator<? extends Callable<? extends Sequence>> loaders, final Callback callback)
+    {
+        final ExecutorService loadingPool = Executors.newFixedThreadPool(loadingThreads);
+        final ExecutorService processingPool = Executors.newFixedThreadPool(processingThreads);
+
+        final Semaphore pending = new Semaphore(maxPending);
+        final AtomicReference<Throwable> callbackError = new AtomicReference<Throwable>();
+
+        int nbSequences = 0;
+
+        try
+        {
+            while (callbackError.get() == null && loaders.hasNext())
+            {
+                // backpressure: wait for a result before loading another sequence
+                pending.acquire();
+
+                final Callable<? extends Sequence> loader = loaders.next();
+                final int index = nbSequences++;
+
+                loadingPool.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        final Sequence sequence;
+
+                        try
+                        {
+                            sequence = loader.call();
+                            if (sequence == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
+                        }
+                        catch (Throwable e)
+                        {
+                            deliver(callback, index, null, null, e, pending, callbackError);
+                            return;
+                        }
+
+                        try
+                        {
+                            processingPool.execute(new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    Result result;
+
+                                    try
+                                    {
+                                        result = threshold(sequence);
+                                    }
+                                    catch (Throwable e)
+                                    {
+                                        deliver(callback, index, sequence, null, e, pending, callbackError);
+                                        return;
+                                    }
+
+                                    deliver(callback, index, sequence, result, null, pending, callbackError);
+                                }
+                            });
+                        }
+                        catch (RejectedExecutionException e)
+                        {
+                            deliver(callback, index, sequence, null, e, pending, callbackError);
+                        }
+                    }
+                });
+            }
+
+            // wait for the sequences in progress
+            pending.acquire(maxPending);
+        }
+        catch (InterruptedException e)
+        {
+            throw CancellationToken.interrupted(e);
+        }
+        finally
+        {
+            loadingPool.shutdownNow();
+            processingPool.shutdownNow();
+        }
+
+        Throwable error = callbackError.get();
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        if (error != null) throw new RuntimeException(error);
+
+        return nbSequences;
+    }
+
+    /**
+     * Delivers the result (or failure) of a sequence to the callback, and makes room for another
+     * sequence
+     */
+    private static void deliver(Callback callback, int index, Sequence sequence, Result result, Throwable error, Semaphore pending,
+            AtomicReference<Throwable> callbackError)
+    {
+        try
+        {
+            synchronized (callback)
+            {
+                if (error == null) callback.completed(index, sequence, result);
+                else callback.failed(index, error);
+            }
+        }
+        catch (Throwable e)
+        {
+            callbackError.compareAndSet(null, e);
+        }
+        finally
+        {
+            pending.release();
+        }
+    }
+
+    /**
+     * Thresholds a sequence of the batch (in the calling thread)
+     */
+    Result threshold(Sequence sequence)
+    {
+        if (channel >= sequence.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + channel);
+
+        double[][] thresholds = computeThresholds(sequence);
+
+        switch (output)
+        {
+        case SEQUENCE:
+            Sequence labels = Thresholder.threshold(sequence, channel, thresholds, false, 1);
+            labels.setName(sequence.getName() + "_thresholded");
+            return new Result(thresholds, labels, null);
+        case ROI:
+            return new Result(thresholds, null, Thresholder.threshold(sequence, channel, thresholds, 1));
+        case MULTI_ROI:
+            List<ROI> rois = ConnectedComponents.extract(sequence, channel, thresholds, connectivity, 1, 0, Double.POSITIVE_INFINITY);
+            return new Result(thresholds, null, rois.toArray(new ROI[rois.size()]));
+        default:
+            throw new UnsupportedOperationException(output + " output");
+        }
+    }
+
+    private double[][] computeThresholds(Sequence sequence)
+    {
+        switch (method)
+        {
+        case K_MEANS:
+            return KMeans.computeKMeansThresholds(sequence, channel, timeDependent, nbClasses, nbBins, 1);
+        case OTSU:
+            return MultiOtsu.computeOtsuThresholds(sequence, channel, timeDependent, nbClasses, nbBins, 1);
+        case MANUAL:
+        {
+            if (manualThresholds == null) throw new IllegalArgumentException("Thresholder: no thresholds given");
+
+            double[][] thresholds = new double[sequence.getSizeT()][];
+
+            double[] global = manualThresholds;
+            if (percentiles && !timeDependent) global = Histogram.compute(sequence, channel, -1, Histogram.DEFAULT_QUANTILE_BINS).getPercentiles(manualThresholds);
+
+            for (int t = 0; t < thresholds.length; t++)
+            {
+                if (percentiles && timeDependent) thresholds[t] = Histogram.compute(sequence, channel, t, Histogram.DEFAULT_QUANTILE_BINS).getPercentiles(manualThresholds);
+                else thresholds[t] = global.clone();
+            }
+
+            return thresholds;
+        }
+        default:
+            throw new UnsupportedOperationException(method + " method");
+        }
+    }
+}
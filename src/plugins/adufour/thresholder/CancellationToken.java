@@ -0,0 +1,219 @@
+package plugins.adufour.thresholder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cooperative cancellation of thresholding computations. While a token is attached to a thread
+ * (see {@link #attach(CancellationToken)}), the thresholding loops run by that thread (and the
+ * slice tasks it hands over to worker threads) check the token at slice (or tile) granularity, and
+ * stop with a {@link CancellationException} once it has been cancelled.<br>
+ * Tokens also receive the progress of these loops (see {@link #progressChanged(double)}), so that
+ * long computations can be monitored (e.g. in a progress bar)
+ */
+public class CancellationToken
+{
+    /**
+     * Token ignoring cancellation (and thread interruption), attached while a computation must not
+     * be stopped half-way (see {@link CancellationToken#attachUncancellable()})
+     */
+    private static final class Uncancellable extends CancellationToken
+    {
+        /**
+         * the token receiving the progress (if any)
+         */
+        private final CancellationToken parent;
+
+        Uncancellable(CancellationToken parent)
+        {
+            this.parent = parent;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        protected void progressChanged(double progress)
+        {
+            if (parent != null) parent.progressChanged(progress);
+        }
+    }
+
+    /**
+     * token of each thread (if any)
+     */
+    private static final ThreadLocal<CancellationToken> current   = new ThreadLocal<CancellationToken>();
+
+    private volatile boolean                            cancelled;
+
+    /**
+     * true while a loop reports its progress to this token (enclosed loops do not report theirs)
+     */
+    private final AtomicBoolean                         reporting = new AtomicBoolean();
+
+    /**
+     * Requests the cancellation of the computations checking this token
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if this token has been cancelled (may be overridden to check other stop
+     *         conditions, e.g. the interruption of a thread)
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Called as the current thresholding loop progresses (possibly from several threads at once).
+     * Each loop (histogram, per-frame thresholds, labeling...) reports its progress from 0 to 1.
+     * This implementation does nothing
+     *
+     * @param progress
+     *            the fraction of the current loop completed so far (between 0 and 1)
+     */
+    protected void progressChanged(double progress)
+    {
+    }
+
+    /**
+     * Attaches a token to the calling thread
+     *
+     * @param token
+     *            the token to check in the calling thread (or null to stop checking)
+     * @return the token previously attached to the calling thread (to restore with
+     *         {@link #attach(CancellationToken)} when done)
+     */
+    public static CancellationToken attach(CancellationToken token)
+    {
+        CancellationToken previous = current.get();
+
+        if (token == null) current.remove();
+        else current.set(token);
+
+        return previous;
+    }
+
+    /**
+     * @throws CancellationException
+     *             if the token attached to the calling thread has been cancelled
+     */
+    public static void check()
+    {
+        CancellationToken token = current.get();
+
+        if (token != null && token.isCancelled()) throw new CancellationException("Thresholder: cancelled");
+    }
+
+    /**
+     * Attaches to the calling thread a token that cannot be cancelled, while still reporting the
+     * progress to the token previously attached (if any). Waits for worker threads are not
+     * interrupted either (see {@link #isCancellable()}). Call {@link #attach(CancellationToken)}
+     * with the returned token once the computation is over
+     *
+     * @return the token previously attached to the calling thread
+     */
+    static CancellationToken attachUncancellable()
+    {
+        return attach(new Uncancellable(current.get()));
+    }
+
+    /**
+     * @return false if the computations of the calling thread must not be stopped half-way,
+     *         including by an interruption of the thread (see {@link #attachUncancellable()})
+     */
+    static boolean isCancellable()
+    {
+        return !(current.get() instanceof Uncancellable);
+    }
+
+    /**
+     * Converts the interruption of a thread waiting for a computation into a cancellation
+     *
+     * @param e
+     *            the interruption
+     * @return the cancellation to throw (the interrupted status of the calling thread is restored)
+     */
+    static CancellationException interrupted(InterruptedException e)
+    {
+        Thread.currentThread().interrupt();
+
+        CancellationException cancellation = new CancellationException("Thresholder: interrupted");
+        cancellation.initCause(e);
+        return cancellation;
+    }
+
+    /**
+     * Starts reporting the progress of a loop to the token attached to the calling thread, unless
+     * an enclosing loop already reports its progress. When the loop is over, call
+     * {@link #endProgress()} on the returned token
+     *
+     * @return the token to report the progress to (see {@link #reportProgress(int, int)}), or null
+     *         if the progress of the loop should not be reported
+     */
+    static CancellationToken beginProgress()
+    {
+        CancellationToken token = current.get();
+
+        return token != null && token.reporting.compareAndSet(false, true) ? token : null;
+    }
+
+    /**
+     * @param done
+     *            the number of iterations completed so far
+     * @param total
+     *            the total number of iterations of the loop
+     */
+    void reportProgress(int done, int total)
+    {
+        progressChanged(total == 0 ? 1.0 : (double) done / total);
+    }
+
+    /**
+     * Stops reporting the progress of a loop (see {@link #beginProgress()})
+     */
+    void endProgress()
+    {
+        reporting.set(false);
+    }
+
+    /**
+     * Wraps a task handed over to a worker thread, so that it checks the token of the calling
+     * thread
+     *
+     * @return the wrapped task (or the given task if no token is attached to the calling thread)
+     */
+    static <T> Callable<T> propagate(final Callable<T> task)
+    {
+        final CancellationToken token = current.get();
+
+        if (token == null) return task;
+
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                CancellationToken previous = attach(token);
+
+                try
+                {
+                    check();
+                    return task.call();
+                }
+                finally
+                {
+                    attach(previous);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,419 @@
+package plugins.adufour.thresholder;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import icy.roi.BooleanMask2D;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+
+/**
+ * Run-length encoded masks of every class of a slice (or of a band of rows of a slice). Pixels are
+ * labeled one row at a time into a small row buffer, and each row is immediately encoded as runs
+ * of consecutive pixels of the same class, so that no dense mask is ever stored. The number of
+ * points and bounds of each class are maintained along the way, and dense masks (cropped to the
+ * class bounds) are only created when a ROI is built
+ */
+final class ClassMasks
+{
+    private final int     nbThresholds;
+
+    /**
+     * the number of rows covered by the masks (i.e. the index of the last encoded row + 1)
+     */
+    private int           sizeY;
+
+    /**
+     * runs of each class (index k for class k+1), stored as consecutive (y, xStart, xEnd)
+     * triplets, with xEnd exclusive. Null if the class is absent
+     */
+    private final int[][] runs;
+
+    /**
+     * number of values used in each array of {@link #runs}
+     */
+    private final int[]   runsLength;
+
+    private final long[]  nbPoints;
+
+    private final int[]   minX, minY, maxX, maxY;
+
+    /**
+     * Creates empty masks for the classes produced by the given number of thresholds
+     *
+     * @param nbThresholds
+     *            the number of thresholds
+     */
+    ClassMasks(int nbThresholds)
+    {
+        this.nbThresholds = nbThresholds;
+        runs = new int[nbThresholds][];
+        runsLength = new int[nbThresholds];
+        nbPoints = new long[nbThresholds];
+        minX = new int[nbThresholds];
+        minY = new int[nbThresholds];
+        maxX = new int[nbThresholds];
+        maxY = new int[nbThresholds];
+    }
+
+    /**
+     * Labels and encodes the specified rows of a slice
+     *
+     * @param in2D
+     *            the slice data
+     * @param dataType
+     *            the data type of the slice
+     * @param thresholds
+     *            the list of thresholds
+     * @param sizeX
+     *            the width of the slice
+     * @param firstRow
+     *            the first row to encode (inclusive)
+     * @param lastRow
+     *            the last row to encode (exclusive)
+     * @return the encoded masks
+     */
+    static ClassMasks compute(Object in2D, DataType dataType, double[] thresholds, int sizeX, int firstRow, int lastRow)
+    {
+        return compute(in2D, dataType, thresholds, null, sizeX, firstRow, lastRow);
+    }
+
+    /**
+     * Labels and encodes the specified rows of a slice, using the given lookup table for 8-bit and
+     * 16-bit data
+     *
+     * @param in2D
+     *            the slice data
+     * @param dataType
+     *            the data type of the slice
+     * @param thresholds
+     *            the list of thresholds
+     * @param lookupTable
+     *            the lookup table of the thresholds (see
+     *            {@link ThresholdKernels#createLookupTable(DataType, double[])}), or
+     *            <code>null</code> to compare each pixel to the thresholds
+     * @param sizeX
+     *            the width of the slice
+     * @param firstRow
+     *            the first row to encode (inclusive)
+     * @param lastRow
+     *            the last row to encode (exclusive)
+     * @return the encoded masks
+     */
+    static ClassMasks compute(Object in2D, DataType dataType, double[] thresholds, short[] lookupTable, int sizeX, int firstRow, int lastRow)
+    {
+        ClassMasks masks = new ClassMasks(thresholds.length);
+
+        DataType rowType = ThresholdKernels.getLabelDataType(thresholds.length);
+        Object row = createRowBuffer(rowType, sizeX);
+
+        for (int y = firstRow; y < lastRow; y++)
+        {
+            ThresholdKernels.label(in2D, dataType, thresholds, lookupTable, row, rowType, y * sizeX, (y + 1) * sizeX, 0);
+            masks.addRow(row, y);
+        }
+
+        return masks;
+    }
+
+    /**
+     * Labels and encodes every slice of the specified frames of a sequence. Slices (and bands of
+     * rows of large slices) are encoded in parallel
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsOverTime
+     *            a list of thresholds for each time point of the input sequence
+     * @param firstT
+     *            the first frame to encode (inclusive)
+     * @param lastT
+     *            the last frame to encode (exclusive)
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @return the encoded masks of each slice, indexed by [t - firstT][z]
+     */
+    static ClassMasks[][] encode(Sequence input, int c, double[][] thresholdsOverTime, int firstT, int lastT, int nbThreads)
+    {
+        final int sizeX = input.getSizeX();
+        int sizeY = input.getSizeY();
+
+        // large slices are split into bands of rows
+        int rowsPerBand = getRowsPerBand(sizeX);
+        int nbBands = getNbBands(sizeX, sizeY);
+
+        final DataType dataType = input.getDataType_();
+
+        long start = ThresholdMetrics.start();
+        long pixels = 0;
+
+        List<Callable<ClassMasks>> tasks = new ArrayList<Callable<ClassMasks>>();
+
+        for (int frame = firstT; frame < lastT; frame++)
+        {
+            final double[] thresholds = thresholdsOverTime[frame];
+
+            if (thresholds == null || thresholds.length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+
+            long framePixels = (long) sizeX * sizeY * input.getSizeZ(frame);
+            pixels += framePixels;
+            final short[] lookupTable = ThresholdKernels.isLookupTableWorthwhile(dataType, thresholds, framePixels)
+                    ? ThresholdKernels.createLookupTable(dataType, thresholds) : null;
+
+            for (int z = 0; z < input.getSizeZ(frame); z++)
+            {
+                final Object _in2D = input.getDataXY(frame, z, c);
+
+                for (int band = 0; band < nbBands; band++)
+                {
+                    final int firstRow = band * rowsPerBand;
+                    final int lastRow = Math.min(sizeY, firstRow + rowsPerBand);
+
+                    tasks.add(new Callable<ClassMasks>()
+                    {
+                        @Override
+                        public ClassMasks call()
+                        {
+                            return compute(_in2D, dataType, thresholds, lookupTable, sizeX, firstRow, lastRow);
+                        }
+                    });
+                }
+            }
+        }
+
+        List<ClassMasks> bands = SliceExecutor.invokeAll(tasks, nbThreads);
+
+        ClassMasks[][] masks = new ClassMasks[lastT - firstT][];
+
+        int task = 0;
+
+        for (int frame = firstT; frame < lastT; frame++)
+        {
+            masks[frame - firstT] = new ClassMasks[input.getSizeZ(frame)];
+
+            for (int z = 0; z < masks[frame - firstT].length; z++)
+            {
+                ClassMasks slice = bands.get(task++);
+
+                for (int band = 1; band < nbBands; band++)
+                    slice.append(bands.get(task++));
+
+                masks[frame - firstT][z] = slice;
+            }
+        }
+
+        ThresholdMetrics.record(Phase.LABELING, start, pixels);
+
+        return masks;
+    }
+
+    /**
+     * @return the number of rows per band (so that a band holds about
+     *         {@link SliceExecutor#TILE_SIZE} pixels)
+     */
+    private static int getRowsPerBand(int sizeX)
+    {
+        return Math.max(1, SliceExecutor.TILE_SIZE / Math.max(1, sizeX));
+    }
+
+    /**
+     * @return the number of bands of rows each slice is split into
+     */
+    static int getNbBands(int sizeX, int sizeY)
+    {
+        int rowsPerBand = getRowsPerBand(sizeX);
+        return Math.max(1, (sizeY + rowsPerBand - 1) / rowsPerBand);
+    }
+
+    private static Object createRowBuffer(DataType rowType, int sizeX)
+    {
+        switch (rowType)
+        {
+        case UBYTE:
+            return new byte[sizeX];
+        case USHORT:
+            return new short[sizeX];
+        default:
+            return new int[sizeX];
+        }
+    }
+
+    /**
+     * Encodes a row of labels
+     *
+     * @param rowLabels
+     *            the labels of the row (byte[], short[] or int[] array)
+     * @param y
+     *            the index of the row
+     */
+    void addRow(Object rowLabels, int y)
+    {
+        if (y >= sizeY) sizeY = y + 1;
+
+        byte[] bytes = rowLabels instanceof byte[] ? (byte[]) rowLabels : null;
+        short[] shorts = rowLabels instanceof short[] ? (short[]) rowLabels : null;
+        int[] ints = rowLabels instanceof int[] ? (int[]) rowLabels : null;
+
+        int sizeX = bytes != null ? bytes.length : shorts != null ? shorts.length : ints.length;
+
+        int x = 0;
+
+        while (x < sizeX)
+        {
+            int label = bytes != null ? bytes[x] & 0xFF : shorts != null ? shorts[x] & 0xFFFF : ints[x];
+
+            int start = x++;
+
+            // extend the run
+            while (x < sizeX && (bytes != null ? bytes[x] & 0xFF : shorts != null ? shorts[x] & 0xFFFF : ints[x]) == label)
+                x++;
+
+            if (label != 0) addRun(label - 1, y, start, x);
+        }
+    }
+
+    /**
+     * Adds a run to the mask of class k+1
+     */
+    private void addRun(int k, int y, int xStart, int xEnd)
+    {
+        int[] r = runs[k];
+        int n = runsLength[k];
+
+        if (r == null)
+        {
+            r = runs[k] = new int[3 * 16];
+            minX[k] = xStart;
+            maxX[k] = xEnd - 1;
+            minY[k] = y;
+        }
+        else if (n == r.length)
+        {
+            r = runs[k] = Arrays.copyOf(r, n * 2);
+        }
+
+        r[n] = y;
+        r[n + 1] = xStart;
+        r[n + 2] = xEnd;
+        runsLength[k] = n + 3;
+
+        nbPoints[k] += xEnd - xStart;
+
+        if (xStart < minX[k]) minX[k] = xStart;
+        if (xEnd - 1 > maxX[k]) maxX[k] = xEnd - 1;
+        maxY[k] = y;
+    }
+
+    /**
+     * Appends the runs of the given masks, which must cover rows located below the rows of these
+     * masks
+     *
+     * @param other
+     *            the masks to append
+     */
+    void append(ClassMasks other)
+    {
+        if (other.sizeY > sizeY) sizeY = other.sizeY;
+
+        for (int k = 0; k < nbThresholds; k++)
+        {
+            int[] r = other.runs[k];
+
+            for (int i = 0; i < other.runsLength[k]; i += 3)
+                addRun(k, r[i], r[i + 1], r[i + 2]);
+        }
+    }
+
+    /**
+     * @return the number of rows covered by the masks
+     */
+    int getSizeY()
+    {
+        return sizeY;
+    }
+
+    /**
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return true if class k+1 has at least one pixel
+     */
+    boolean contains(int k)
+    {
+        return runs[k] != null;
+    }
+
+    /**
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return the runs of class k+1, stored as consecutive (y, xStart, xEnd) triplets (xEnd is
+     *         exclusive) sorted by row then column, or null if the class is absent. Only the first
+     *         {@link #getRunsLength(int)} values are valid
+     */
+    int[] getRuns(int k)
+    {
+        return runs[k];
+    }
+
+    /**
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return the number of valid values in {@link #getRuns(int)} (i.e. 3 times the number of runs)
+     */
+    int getRunsLength(int k)
+    {
+        return runsLength[k];
+    }
+
+    /**
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return the number of pixels of class k+1
+     */
+    long getNumberOfPoints(int k)
+    {
+        return nbPoints[k];
+    }
+
+    /**
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return the bounds of class k+1, or null if the class is absent
+     */
+    Rectangle getBounds(int k)
+    {
+        if (runs[k] == null) return null;
+
+        return new Rectangle(minX[k], minY[k], maxX[k] - minX[k] + 1, maxY[k] - minY[k] + 1);
+    }
+
+    /**
+     * Creates the dense mask of a class, cropped to the bounds of the class
+     *
+     * @param k
+     *            a threshold index (i.e. class k+1)
+     * @return the mask of class k+1, or null if the class is absent
+     */
+    BooleanMask2D getMask(int k)
+    {
+        Rectangle bounds = getBounds(k);
+
+        if (bounds == null) return null;
+
+        boolean[] mask = new boolean[bounds.width * bounds.height];
+
+        int[] r = runs[k];
+
+        for (int i = 0; i < runsLength[k]; i += 3)
+        {
+            int offset = (r[i] - bounds.y) * bounds.width - bounds.x;
+            Arrays.fill(mask, offset + r[i + 1], offset + r[i + 2], true);
+        }
+
+        return new BooleanMask2D(bounds, mask);
+    }
+}
@@ -0,0 +1,508 @@
+package plugins.adufour.thresholder;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+import plugins.kernel.roi.roi2d.ROI2DArea;
+import plugins.kernel.roi.roi3d.ROI3DArea;
+
+/**
+ * Connected component labeling fused with thresholding. Instead of writing a labeled sequence and
+ * scanning it again, the run-length encoded class masks of each slice (see {@link ClassMasks}) are
+ * connected directly using a union-find structure over the runs: two runs of the same class are
+ * connected if they touch in adjacent rows or slices, according to the chosen
+ * {@link Connectivity}. The size of each component is known before its ROI is built, so
+ * components outside the size range are never materialized.<br>
+ * Each slice (split into bands of rows if it is large) is connected independently and stitched to
+ * the previous slice by a parallel task, all tasks sharing a lock-free union-find structure
+ */
+public final class ConnectedComponents
+{
+    public enum Connectivity
+    {
+        FACES("6 (4 in 2D)", 0, 0, 0), EDGES("18 (8 in 2D)", 1, 1, 0), VERTICES("26 (8 in 2D)", 1, 1, 1);
+        
+        final String description;
+        
+        /**
+         * 1 if diagonally touching runs of the same slice are connected, 0 otherwise
+         */
+        final int    inPlaneExtent;
+        
+        /**
+         * 1 if runs of adjacent slices are connected through their edges (i.e. when they overlap
+         * in adjacent rows, or touch diagonally in the same row), 0 otherwise
+         */
+        final int    edgeExtent;
+        
+        /**
+         * 1 if runs of adjacent slices are connected through their corners (i.e. when they touch
+         * diagonally in adjacent rows), 0 otherwise
+         */
+        final int    vertexExtent;
+        
+        private Connectivity(String description, int inPlaneExtent, int edgeExtent, int vertexExtent)
+        {
+            this.description = description;
+            this.inPlaneExtent = inPlaneExtent;
+            this.edgeExtent = edgeExtent;
+            this.vertexExtent = vertexExtent;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return description;
+        }
+    }
+    
+    private ConnectedComponents()
+    {
+    }
+
+    /**
+     * Thresholds the given sequence channel and extracts the connected components of each class
+     * (pixels of different classes are never connected)
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsOverTime
+     *            a list of thresholds for each time point of the input sequence
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @param minSize
+     *            the minimum number of points of the output ROI
+     * @param maxSize
+     *            the maximum number of points of the output ROI
+     * @return one ROI per connected component within the given size range
+     */
+    public static List<ROI> extract(Sequence input, int c, double[][] thresholdsOverTime, int nbThreads, double minSize, double maxSize)
+    {
+        return extract(input, c, thresholdsOverTime, Connectivity.FACES, nbThreads, minSize, maxSize);
+    }
+
+    /**
+     * Thresholds the given sequence channel and extracts the connected components of each class
+     * (pixels of different classes are never connected)
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsOverTime
+     *            a list of thresholds for each time point of the input sequence
+     * @param connectivity
+     *            the neighborhood connecting two pixels
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @param minSize
+     *            the minimum number of points of the output ROI
+     * @param maxSize
+     *            the maximum number of points of the output ROI
+     * @return one ROI per connected component within the given size range
+     */
+    public static List<ROI> extract(Sequence input, int c, double[][] thresholdsOverTime, Connectivity connectivity, int nbThreads, double minSize,
+            double maxSize)
+    {
+        if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
+        if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+
+        List<ROI> output = new ArrayList<ROI>();
+
+        int sizeT = input.getSizeT();
+        int nbBands = ClassMasks.getNbBands(input.getSizeX(), input.getSizeY());
+
+        // frames are encoded in batches holding just enough slices to keep all threads busy
+        int t = 0;
+
+        while (t < sizeT)
+        {
+            int firstT = t;
+            int nbSlices = 0;
+
+            do
+            {
+                nbSlices += input.getSizeZ(t);
+                t++;
+            }
+            while (t < sizeT && nbSlices * nbBands < 2 * nbThreads);
+
+            ClassMasks[][] masks = ClassMasks.encode(input, c, thresholdsOverTime, firstT, t, nbThreads);
+
+            for (int frame = firstT; frame < t; frame++)
+                extract(output, masks[frame - firstT], thresholdsOverTime[frame].length, frame, connectivity, nbThreads, minSize, maxSize);
+        }
+
+        return output;
+    }
+
+    /**
+     * Extracts the connected components of each class of a frame
+     *
+     * @param output
+     *            the list where the component ROI are added
+     * @param masks
+     *            the encoded masks of each slice of the frame
+     * @param nbThresholds
+     *            the number of thresholds used to compute the masks
+     * @param t
+     *            the time point of the frame
+     * @param connectivity
+     *            the neighborhood connecting two pixels
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @param minSize
+     *            the minimum number of points of the output ROI
+     * @param maxSize
+     *            the maximum number of points of the output ROI
+     */
+    static void extract(List<ROI> output, final ClassMasks[] masks, final int nbThresholds, int t, final Connectivity connectivity, int nbThreads,
+            double minSize, double maxSize)
+    {
+        int depth = masks.length;
+
+        long start = ThresholdMetrics.start();
+
+        // each run gets an identifier, starting at firstRun[z][k] for the runs of class k+1 in z
+        final int[][] firstRun = new int[depth][nbThresholds];
+        int nbRuns = 0;
+
+        for (int k = 0; k < nbThresholds; k++)
+            for (int z = 0; z < depth; z++)
+            {
+                firstRun[z][k] = nbRuns;
+                nbRuns += masks[z].getRunsLength(k) / 3;
+            }
+
+        final AtomicIntegerArray sharedParent = new AtomicIntegerArray(nbRuns);
+        for (int i = 0; i < nbRuns; i++)
+            sharedParent.set(i, i);
+
+        // connect the runs of each band of rows of each slice (in parallel)
+        int sizeY = 0;
+        for (ClassMasks slice : masks)
+            sizeY = Math.max(sizeY, slice.getSizeY());
+
+        int nbBands = Math.max(1, Math.min(sizeY, (2 * nbThreads + depth - 1) / depth));
+        int rowsPerBand = (sizeY + nbBands - 1) / Math.max(1, nbBands);
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+        for (int z = 0; z < depth; z++)
+            for (int band = 0; band < nbBands; band++)
+            {
+                final int slice = z;
+                final int firstRow = band * rowsPerBand;
+                final int lastRow = firstRow + rowsPerBand;
+
+                tasks.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        connect(masks, firstRun, nbThresholds, slice, firstRow, lastRow, connectivity, sharedParent);
+                        return null;
+                    }
+                });
+            }
+
+        SliceExecutor.invokeAll(tasks, nbThreads);
+
+        int[] parent = new int[nbRuns];
+        for (int i = 0; i < nbRuns; i++)
+            parent[i] = sharedParent.get(i);
+
+        // size of each component (stored at its root)
+        long[] sizes = new long[nbRuns];
+
+        for (int k = 0; k < nbThresholds; k++)
+            for (int z = 0; z < depth; z++)
+            {
+                int[] runs = masks[z].getRuns(k);
+
+                for (int i = 0, id = firstRun[z][k]; i < masks[z].getRunsLength(k); i += 3, id++)
+                    sizes[find(parent, id)] += runs[i + 2] - runs[i + 1];
+            }
+
+        // flatten the union-find structure (roots are the smallest identifiers of each component,
+        // hence parent[id] is already flattened when id is reached)
+        for (int id = 0; id < nbRuns; id++)
+            parent[id] = parent[parent[id]];
+
+        // index the retained components (in order of appearance), and count their runs
+        int[] component = new int[nbRuns];
+        Arrays.fill(component, -1);
+        int nbComponents = 0;
+
+        for (int id = 0; id < nbRuns; id++)
+        {
+            if (parent[id] == id && sizes[id] >= minSize && sizes[id] <= maxSize) component[id] = nbComponents++;
+        }
+
+        int[] componentRuns = new int[nbComponents + 1];
+
+        for (int id = 0; id < nbRuns; id++)
+        {
+            int comp = component[parent[id]];
+            if (comp >= 0) componentRuns[comp + 1]++;
+        }
+
+        for (int comp = 0; comp < nbComponents; comp++)
+            componentRuns[comp + 1] += componentRuns[comp];
+
+        // gather the runs of each component as (z, k, index) (sorted by z, then y, then x)
+        int[] sortedRuns = new int[3 * componentRuns[nbComponents]];
+        int[] position = Arrays.copyOf(componentRuns, nbComponents);
+
+        for (int k = 0; k < nbThresholds; k++)
+            for (int z = 0; z < depth; z++)
+                for (int i = 0, id = firstRun[z][k]; i < masks[z].getRunsLength(k); i += 3, id++)
+                {
+                    int comp = component[parent[id]];
+                    if (comp < 0) continue;
+
+                    int p = 3 * position[comp]++;
+                    sortedRuns[p] = z;
+                    sortedRuns[p + 1] = k;
+                    sortedRuns[p + 2] = i;
+                }
+
+        ThresholdMetrics.record(Phase.CONNECTED_COMPONENTS, start, 0);
+
+        start = ThresholdMetrics.start();
+
+        for (int comp = 0; comp < nbComponents; comp++)
+            output.add(createROI(masks, sortedRuns, componentRuns[comp], componentRuns[comp + 1], t));
+
+        ThresholdMetrics.record(Phase.ROI_CONSTRUCTION, start, 0);
+    }
+
+    /**
+     * Connects the runs of the given rows of a slice to their neighbors in the same slice and in the
+     * previous slice
+     */
+    private static void connect(ClassMasks[] masks, int[][] firstRun, int nbThresholds, int z, int firstRow, int lastRow, Connectivity connectivity,
+            AtomicIntegerArray parent)
+    {
+        for (int k = 0; k < nbThresholds; k++)
+        {
+            int[] runs = masks[z].getRuns(k);
+            int length = masks[z].getRunsLength(k);
+
+            int from = lowerBound(runs, length, firstRow);
+            int to = lowerBound(runs, length, lastRow);
+
+            if (from == to) continue;
+
+            int firstId = firstRun[z][k];
+
+            // previous row of the same slice
+            connect(runs, from, to, firstId, runs, length, firstId, -1, connectivity.inPlaneExtent, parent);
+
+            if (z == 0) continue;
+
+            int[] others = masks[z - 1].getRuns(k);
+            int othersLength = masks[z - 1].getRunsLength(k);
+            int othersFirstId = firstRun[z - 1][k];
+
+            if (othersLength == 0) continue;
+
+            // same row of the previous slice
+            connect(runs, from, to, firstId, others, othersLength, othersFirstId, 0, connectivity.edgeExtent, parent);
+
+            // adjacent rows of the previous slice
+            if (connectivity != Connectivity.FACES)
+            {
+                connect(runs, from, to, firstId, others, othersLength, othersFirstId, -1, connectivity.vertexExtent, parent);
+                connect(runs, from, to, firstId, others, othersLength, othersFirstId, 1, connectivity.vertexExtent, parent);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first run located on or after the given row
+     */
+    private static int lowerBound(int[] runs, int length, int y)
+    {
+        int low = 0, high = length / 3;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (runs[3 * mid] < y) low = mid + 1;
+            else high = mid;
+        }
+
+        return 3 * low;
+    }
+
+    /**
+     * Connects each run of the given range of the first list to the runs of the second list located
+     * dy rows away and overlapping it (or touching it diagonally if extent is 1)
+     *
+     * @param runs
+     *            the first list of runs (see {@link ClassMasks#getRuns(int)})
+     * @param from
+     *            the first run of the first list to connect (inclusive)
+     * @param to
+     *            the last run of the first list to connect (exclusive)
+     * @param firstId
+     *            the identifier of the first run of the first list
+     * @param others
+     *            the second list of runs
+     * @param othersLength
+     *            the length of the second list
+     * @param othersFirstId
+     *            the identifier of the first run of the second list
+     * @param dy
+     *            the row offset of the second list (-1, 0 or 1)
+     * @param extent
+     *            0 for face-connected runs only, 1 to also connect diagonally touching runs
+     * @param parent
+     *            the union-find structure
+     */
+    static void connect(int[] runs, int from, int to, int firstId, int[] others, int othersLength, int othersFirstId, int dy, int extent,
+            AtomicIntegerArray parent)
+    {
+        int j = lowerBound(others, othersLength, runs[from] + dy);
+
+        for (int i = from, id = firstId + from / 3; i < to; i += 3, id++)
+        {
+            int y = runs[i] + dy;
+            int xStart = runs[i + 1];
+            int xEnd = runs[i + 2];
+
+            // skip the runs located before the current run
+            while (j < othersLength && (others[j] < y || (others[j] == y && others[j + 2] + extent <= xStart)))
+                j += 3;
+
+            // connect all the overlapping runs
+            for (int o = j; o < othersLength && others[o] == y && others[o + 1] < xEnd + extent; o += 3)
+                union(parent, id, othersFirstId + o / 3);
+        }
+    }
+
+    /**
+     * Lock-free find, with path halving
+     */
+    static int find(AtomicIntegerArray parent, int id)
+    {
+        while (true)
+        {
+            int p = parent.get(id);
+            if (p == id) return id;
+
+            int gp = parent.get(p);
+            if (gp != p) parent.compareAndSet(id, p, gp);
+
+            id = gp;
+        }
+    }
+
+    /**
+     * Lock-free union. The smallest identifier always becomes the root, so that the parent of any
+     * identifier is never larger than the identifier itself
+     */
+    static void union(AtomicIntegerArray parent, int id1, int id2)
+    {
+        while (true)
+        {
+            int root1 = find(parent, id1);
+            int root2 = find(parent, id2);
+
+            if (root1 == root2) return;
+
+            int small = Math.min(root1, root2);
+            int large = Math.max(root1, root2);
+
+            // fails if another thread has linked the large root in the meantime
+            if (parent.compareAndSet(large, large, small)) return;
+        }
+    }
+
+    static int find(int[] parent, int id)
+    {
+        while (parent[id] != id)
+        {
+            // path halving
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+
+        return id;
+    }
+
+    /**
+     * Creates the ROI of a component from its runs
+     */
+    private static ROI createROI(ClassMasks[] masks, int[] sortedRuns, int first, int last, int t)
+    {
+        int depth = masks.length;
+
+        ROI3DArea area3D = null;
+        ROI2DArea area2D = null;
+
+        int r = first;
+
+        while (r < last)
+        {
+            int z = sortedRuns[3 * r];
+
+            // bounds of the component in the current slice
+            int end = r;
+            int minX = Integer.MAX_VALUE, maxX = -1, minY = Integer.MAX_VALUE, maxY = -1;
+
+            for (; end < last && sortedRuns[3 * end] == z; end++)
+            {
+                int[] runs = masks[z].getRuns(sortedRuns[3 * end + 1]);
+                int i = sortedRuns[3 * end + 2];
+
+                if (runs[i] < minY) minY = runs[i];
+                if (runs[i] > maxY) maxY = runs[i];
+                if (runs[i + 1] < minX) minX = runs[i + 1];
+                if (runs[i + 2] - 1 > maxX) maxX = runs[i + 2] - 1;
+            }
+
+            Rectangle bounds = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+            boolean[] mask = new boolean[bounds.width * bounds.height];
+
+            for (; r < end; r++)
+            {
+                int[] runs = masks[z].getRuns(sortedRuns[3 * r + 1]);
+                int i = sortedRuns[3 * r + 2];
+
+                int offset = (runs[i] - bounds.y) * bounds.width - bounds.x;
+                Arrays.fill(mask, offset + runs[i + 1], offset + runs[i + 2], true);
+            }
+
+            area2D = new ROI2DArea(new BooleanMask2D(bounds, mask));
+
+            if (depth > 1)
+            {
+                if (area3D == null)
+                {
+                    area3D = new ROI3DArea();
+                    area3D.setT(t);
+                }
+                area3D.setSlice(z, area2D, false);
+            }
+            else
+            {
+                area2D.setT(t);
+            }
+        }
+
+        return area3D != null ? area3D : area2D;
+    }
+}
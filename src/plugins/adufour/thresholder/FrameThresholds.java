@@ -0,0 +1,141 @@
+package plugins.adufour.thresholder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+
+/**
+ * Computes thresholds for each frame of a sequence independently. Frames are distributed
+ * dynamically over a number of workers running on the shared pool (see
+ * {@link SliceExecutor#getSharedPool()}), each worker reusing its own buffer (e.g. a histogram)
+ * from one frame to the next
+ */
+final class FrameThresholds
+{
+    /**
+     * Computes the thresholds of a single frame
+     *
+     * @param <B>
+     *            the type of the per-worker buffer
+     */
+    abstract static class FrameWorker<B>
+    {
+        /**
+         * @return a new buffer for a worker (may be null)
+         */
+        abstract B createBuffer();
+
+        /**
+         * @param t
+         *            the frame to compute the thresholds of
+         * @param buffer
+         *            the buffer of the calling worker
+         * @return the thresholds of the frame
+         */
+        abstract double[] computeThresholds(int t, B buffer);
+    }
+
+    private FrameThresholds()
+    {
+    }
+
+    /**
+     * Computes the thresholds of each frame in parallel
+     *
+     * @param sizeT
+     *            the number of frames
+     * @param worker
+     *            the per-frame computation
+     * @param nbThreads
+     *            the number of workers (1 to run sequentially)
+     * @return the thresholds of each frame
+     */
+    static <B> double[][] computePerFrame(final int sizeT, final FrameWorker<B> worker, int nbThreads)
+    {
+        final double[][] thresholds = new double[sizeT][];
+
+        final AtomicInteger nextFrame = new AtomicInteger();
+        final AtomicInteger doneFrames = new AtomicInteger();
+
+        // report the progress frame by frame (rather than that of the computations of each frame)
+        final CancellationToken progress = CancellationToken.beginProgress();
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+        for (int i = 0; i < Math.max(1, Math.min(nbThreads, sizeT)); i++)
+        {
+            tasks.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    B buffer = worker.createBuffer();
+
+                    for (int t = nextFrame.getAndIncrement(); t < sizeT; t = nextFrame.getAndIncrement())
+                    {
+                        CancellationToken.check();
+                        thresholds[t] = worker.computeThresholds(t, buffer);
+
+                        if (progress != null) progress.reportProgress(doneFrames.incrementAndGet(), sizeT);
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        try
+        {
+            if (tasks.size() == 1) SliceExecutor.invokeAll(tasks, 1);
+            else SliceExecutor.invokeAll(tasks, SliceExecutor.getSharedPool());
+        }
+        finally
+        {
+            if (progress != null) progress.endProgress();
+        }
+
+        return thresholds;
+    }
+
+    /**
+     * Computes the histogram of a frame, reusing the given buffer for exact histograms
+     *
+     * @param buffer
+     *            an exact histogram of the sequence data type to reuse, or null
+     */
+    static Histogram computeHistogram(Sequence sequence, int c, int t, int nbBins, Histogram buffer)
+    {
+        if (buffer == null) return Histogram.compute(sequence, c, t, nbBins);
+
+        long start = ThresholdMetrics.start();
+
+        buffer.clear();
+
+        int length = sequence.getSizeX() * sequence.getSizeY();
+
+        for (int z = 0; z < sequence.getSizeZ(t); z++)
+        {
+            CancellationToken.check();
+
+            Object slice = sequence.getDataXY(t, z, c);
+            if (slice != null) buffer.add(slice, sequence.getDataType_(), 0, length);
+        }
+
+        ThresholdMetrics.record(Phase.HISTOGRAM, start, (long) length * sequence.getSizeZ(t));
+
+        return buffer;
+    }
+
+    /**
+     * @return a reusable histogram buffer for the given sequence (null if the sequence data type
+     *         does not allow exact histograms, whose bins depend on each frame)
+     */
+    static Histogram createHistogramBuffer(Sequence sequence)
+    {
+        return Histogram.isExactType(sequence.getDataType_()) ? new Histogram(sequence.getDataType_()) : null;
+    }
+}
@@ -0,0 +1,557 @@
+package plugins.adufour.thresholder;
+
+import java.util.Arrays;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+
+/**
+ * Intensity histogram of a sequence channel, computed natively on the sequence data type.<br>
+ * For 8-bit and 16-bit data, the histogram is exact (one count per possible value), requires a
+ * single pass over the data and can be re-binned to any precision without reading the data again.
+ * Other data types use a bounded two-pass strategy: a fused min/max pass followed by the binning
+ * pass, yielding a histogram with a fixed number of bins.
+ */
+public class Histogram
+{
+    /**
+     * Default number of bins used to compute quantiles on data types without exact histograms.
+     * The quantile error is then bounded by (max - min) / (DEFAULT_QUANTILE_BINS - 1)
+     */
+    public static final int DEFAULT_QUANTILE_BINS = 65536;
+
+    /**
+     * true if the histogram holds one count per possible value, false if values are binned
+     */
+    private final boolean  exact;
+
+    /**
+     * exact mode: the value corresponding to the first count
+     */
+    private final int      offset;
+
+    /**
+     * exact mode: number of pixels per value<br>
+     * binned mode: number of pixels per bin
+     */
+    private final double[] counts;
+
+    /**
+     * binned mode: the data bounds over which the bins are spread
+     */
+    private final double   binMin, binMax;
+
+    /**
+     * binned mode: the factor converting a value into a bin index
+     */
+    private final double   binFact;
+
+    /**
+     * Creates an empty exact histogram for the given 8-bit or 16-bit data type
+     *
+     * @param dataType
+     *            the data type of the values to count
+     * @throws IllegalArgumentException
+     *             if the data type is not supported (see {@link #isExactType(DataType)})
+     */
+    public Histogram(DataType dataType)
+    {
+        if (!isExactType(dataType)) throw new IllegalArgumentException("Exact histograms are not available for " + dataType + " data");
+
+        this.exact = true;
+
+        switch (dataType)
+        {
+        case BYTE:
+            offset = Byte.MIN_VALUE;
+            counts = new double[256];
+            break;
+        case SHORT:
+            offset = Short.MIN_VALUE;
+            counts = new double[65536];
+            break;
+        case USHORT:
+            offset = 0;
+            counts = new double[65536];
+            break;
+        default:
+            offset = 0;
+            counts = new double[256];
+        }
+
+        binMin = binMax = binFact = Double.NaN;
+    }
+
+    /**
+     * Creates an empty binned histogram spread over the given data bounds. The bin of a value
+     * <code>v</code> is <code>(int) ((v - min) * (nbBins - 1) / (max - min))</code>
+     *
+     * @param min
+     *            the lowest value of the data
+     * @param max
+     *            the highest value of the data
+     * @param nbBins
+     *            the number of bins
+     */
+    public Histogram(double min, double max, int nbBins)
+    {
+        this.exact = false;
+        this.offset = 0;
+        this.counts = new double[nbBins];
+        this.binMin = min;
+        this.binMax = max;
+        this.binFact = (nbBins - 1) / (max - min);
+    }
+
+    /**
+     * @param dataType
+     *            a data type
+     * @return true if exact histograms can be computed for the given data type (8-bit and 16-bit
+     *         data)
+     */
+    public static boolean isExactType(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+        case USHORT:
+        case SHORT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Computes the histogram of the specified channel of a sequence
+     *
+     * @param input
+     *            the input sequence
+     * @param c
+     *            the channel to compute the histogram of
+     * @param t
+     *            the frame to compute the histogram of, or -1 to compute it over all frames
+     * @param nbBins
+     *            the number of bins (only used if the data type does not allow an exact
+     *            histogram)
+     * @return the histogram
+     */
+    public static Histogram compute(Sequence input, int c, int t, int nbBins)
+    {
+        DataType dataType = input.getDataType_();
+
+        int firstT = t < 0 ? 0 : t;
+        int lastT = t < 0 ? input.getSizeT() - 1 : t;
+
+        int length = input.getSizeX() * input.getSizeY();
+
+        long pixels = 0;
+        for (int time = firstT; time <= lastT; time++)
+            pixels += (long) length * input.getSizeZ(time);
+
+        Histogram histogram;
+
+        if (isExactType(dataType))
+        {
+            histogram = new Histogram(dataType);
+        }
+        else
+        {
+            long start = ThresholdMetrics.start();
+
+            // first pass: data bounds
+            double[] minmax = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+            for (int time = firstT; time <= lastT; time++)
+                for (int z = 0; z < input.getSizeZ(time); z++)
+                {
+                    CancellationToken.check();
+
+                    Object slice = input.getDataXY(time, z, c);
+                    if (slice != null) updateBounds(slice, dataType, 0, length, minmax);
+                }
+
+            histogram = new Histogram(minmax[0], minmax[1], nbBins);
+
+            ThresholdMetrics.record(Phase.BOUNDS, start, pixels);
+        }
+
+        long start = ThresholdMetrics.start();
+
+        for (int time = firstT; time <= lastT; time++)
+            for (int z = 0; z < input.getSizeZ(time); z++)
+            {
+                CancellationToken.check();
+
+                Object slice = input.getDataXY(time, z, c);
+                if (slice != null) histogram.add(slice, dataType, 0, length);
+            }
+
+        ThresholdMetrics.record(Phase.HISTOGRAM, start, pixels);
+
+        return histogram;
+    }
+
+    /**
+     * Updates the given bounds with the values of the specified range of an array
+     *
+     * @param array
+     *            the data array
+     * @param dataType
+     *            the data type of the array
+     * @param from
+     *            the first value to read (inclusive)
+     * @param to
+     *            the last value to read (exclusive)
+     * @param minmax
+     *            the bounds to update, as { min, max }
+     */
+    public static void updateBounds(Object array, DataType dataType, int from, int to, double[] minmax)
+    {
+        double min = minmax[0], max = minmax[1];
+
+        switch (dataType)
+        {
+        case INT:
+        {
+            int[] data = (int[]) array;
+            for (int i = from; i < to; i++)
+            {
+                int v = data[i];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            break;
+        }
+        case UINT:
+        {
+            int[] data = (int[]) array;
+            for (int i = from; i < to; i++)
+            {
+                long v = data[i] & 0xFFFFFFFFL;
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            break;
+        }
+        case FLOAT:
+        {
+            float[] data = (float[]) array;
+            for (int i = from; i < to; i++)
+            {
+                float v = data[i];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            break;
+        }
+        case DOUBLE:
+        {
+            double[] data = (double[]) array;
+            for (int i = from; i < to; i++)
+            {
+                double v = data[i];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            break;
+        }
+        default:
+            for (int i = from; i < to; i++)
+            {
+                double v = Array1DUtil.getValue(array, i, dataType);
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+        }
+
+        minmax[0] = min;
+        minmax[1] = max;
+    }
+
+    /**
+     * Adds the values of the specified range of an array to this histogram
+     *
+     * @param array
+     *            the data array
+     * @param dataType
+     *            the data type of the array (must be the data type of this histogram in exact
+     *            mode)
+     * @param from
+     *            the first value to read (inclusive)
+     * @param to
+     *            the last value to read (exclusive)
+     */
+    public void add(Object array, DataType dataType, int from, int to)
+    {
+        if (exact)
+        {
+            switch (dataType)
+            {
+            case UBYTE:
+            {
+                byte[] data = (byte[]) array;
+                for (int i = from; i < to; i++)
+                    counts[data[i] & 0xFF]++;
+                break;
+            }
+            case BYTE:
+            {
+                byte[] data = (byte[]) array;
+                for (int i = from; i < to; i++)
+                    counts[data[i] - Byte.MIN_VALUE]++;
+                break;
+            }
+            case USHORT:
+            {
+                short[] data = (short[]) array;
+                for (int i = from; i < to; i++)
+                    counts[data[i] & 0xFFFF]++;
+                break;
+            }
+            case SHORT:
+            {
+                short[] data = (short[]) array;
+                for (int i = from; i < to; i++)
+                    counts[data[i] - Short.MIN_VALUE]++;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Cannot add " + dataType + " data to an exact histogram");
+            }
+
+            return;
+        }
+
+        switch (dataType)
+        {
+        case INT:
+        {
+            int[] data = (int[]) array;
+            for (int i = from; i < to; i++)
+                counts[bin(data[i])]++;
+            break;
+        }
+        case UINT:
+        {
+            int[] data = (int[]) array;
+            for (int i = from; i < to; i++)
+                counts[bin(data[i] & 0xFFFFFFFFL)]++;
+            break;
+        }
+        case FLOAT:
+        {
+            float[] data = (float[]) array;
+            for (int i = from; i < to; i++)
+                counts[bin(data[i])]++;
+            break;
+        }
+        case DOUBLE:
+        {
+            double[] data = (double[]) array;
+            for (int i = from; i < to; i++)
+                counts[bin(data[i])]++;
+            break;
+        }
+        default:
+            for (int i = from; i < to; i++)
+                counts[bin(Array1DUtil.getValue(array, i, dataType))]++;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram (e.g. computed on another part of the data) to this
+     * histogram
+     *
+     * @param other
+     *            a histogram of the same data type (exact mode) or with the same bounds and number
+     *            of bins (binned mode)
+     */
+    public void add(Histogram other)
+    {
+        add(other, 1);
+    }
+
+    /**
+     * Removes the counts of another histogram (e.g. computed on data that has since changed) from
+     * this histogram
+     *
+     * @param other
+     *            a histogram of the same data type (exact mode) or with the same bounds and number
+     *            of bins (binned mode), whose counts were previously added to this histogram
+     */
+    public void subtract(Histogram other)
+    {
+        add(other, -1);
+    }
+
+    private void add(Histogram other, int sign)
+    {
+        if (exact != other.exact || offset != other.offset || counts.length != other.counts.length
+                || (!exact && (binMin != other.binMin || binMax != other.binMax)))
+            throw new IllegalArgumentException("Cannot combine histograms with different bins");
+
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += sign * other.counts[i];
+    }
+
+    /**
+     * Resets all counts to zero (e.g. to reuse this histogram on other data)
+     */
+    public void clear()
+    {
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * @return an empty histogram with the same bins as this histogram
+     */
+    public Histogram createEmpty()
+    {
+        if (exact) return new Histogram(getExactType());
+
+        return new Histogram(binMin, binMax, counts.length);
+    }
+
+    /**
+     * exact mode: the data type corresponding to the offset and number of counts
+     */
+    private DataType getExactType()
+    {
+        if (counts.length == 256) return offset == 0 ? DataType.UBYTE : DataType.BYTE;
+
+        return offset == 0 ? DataType.USHORT : DataType.SHORT;
+    }
+
+    /**
+     * binned mode: the bin of the given value (values outside the histogram bounds go to the first
+     * or last bin)
+     */
+    private int bin(double value)
+    {
+        int bin = (int) ((value - binMin) * binFact);
+
+        if (bin < 0) return 0;
+        if (bin >= counts.length) return counts.length - 1;
+        return bin;
+    }
+
+    /**
+     * @return true if this histogram holds one count per possible value, false if the values are
+     *         binned
+     */
+    public boolean isExact()
+    {
+        return exact;
+    }
+
+    /**
+     * @return the lowest value in the histogram
+     */
+    public double getMin()
+    {
+        if (!exact) return binMin;
+
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] != 0) return i + offset;
+
+        return offset;
+    }
+
+    /**
+     * @return the highest value in the histogram
+     */
+    public double getMax()
+    {
+        if (!exact) return binMax;
+
+        for (int i = counts.length - 1; i >= 0; i--)
+            if (counts[i] != 0) return i + offset;
+
+        return offset;
+    }
+
+    /**
+     * Returns the histogram counts with the given number of bins spread between {@link #getMin()}
+     * and {@link #getMax()}, i.e. the bin of a value <code>v</code> is
+     * <code>(int) ((v - min) * (nbBins - 1) / (max - min))</code>
+     *
+     * @param nbBins
+     *            the number of bins
+     * @return the number of pixels in each bin
+     * @throws IllegalArgumentException
+     *             if the histogram is binned with a different number of bins
+     */
+    public double[] getBins(int nbBins)
+    {
+        if (!exact)
+        {
+            if (nbBins != counts.length) throw new IllegalArgumentException("This histogram has " + counts.length + " bins (requested: " + nbBins + ")");
+
+            return counts.clone();
+        }
+
+        double min = getMin();
+        double fact = (nbBins - 1) / (getMax() - min);
+
+        double[] bins = new double[nbBins];
+
+        for (int i = 0; i < counts.length; i++)
+        {
+            double count = counts[i];
+            if (count != 0) bins[(int) ((i + offset - min) * fact)] += count;
+        }
+
+        return bins;
+    }
+
+    /**
+     * @return the total number of values in the histogram
+     */
+    public double getCount()
+    {
+        double count = 0;
+        for (double c : counts)
+            count += c;
+        return count;
+    }
+
+    /**
+     * Computes the given percentiles of the histogram values (nearest-rank method), i.e. the
+     * smallest value v such that at least <code>percentile</code>% of the values are lower than or
+     * equal to v. The result is exact for exact histograms. For binned histograms, the lower bound
+     * of the corresponding bin is returned, hence the error is bounded by the bin width
+     *
+     * @param percentiles
+     *            the percentiles to compute (between 0 and 100)
+     * @return the value of each percentile
+     */
+    public double[] getPercentiles(double... percentiles)
+    {
+        double[] values = new double[percentiles.length];
+
+        double count = getCount();
+
+        for (int p = 0; p < percentiles.length; p++)
+        {
+            // rank of the percentile, between 1 and count
+            double rank = Math.max(1, Math.min(count, Math.ceil(percentiles[p] * count / 100)));
+
+            int bin = 0;
+            double cumCount = counts[0];
+
+            while (cumCount < rank && bin < counts.length - 1)
+                cumCount += counts[++bin];
+
+            values[p] = exact ? bin + offset : binMin + bin / binFact;
+        }
+
+        // the lower bound of the first bin is the minimum, even if empty
+        if (count == 0) Arrays.fill(values, getMin());
+
+        return values;
+    }
+}
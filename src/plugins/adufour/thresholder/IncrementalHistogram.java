@@ -0,0 +1,317 @@
+package plugins.adufour.thresholder;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
+
+/**
+ * Histogram of a sequence channel maintained incrementally, e.g. while frames are being acquired.
+ * The histogram of each frame is kept along with their sum, so that when a frame is added or
+ * modified, only that frame is read again (its previous contribution is subtracted from the sum
+ * and replaced by the new one). Global thresholds can then be refreshed in O(bins), whatever the
+ * number of frames.<br>
+ * The sequence is listened to: modified frames (and frames added to the sequence) are updated
+ * automatically the next time the histogram or thresholds are requested. Call {@link #dispose()}
+ * to stop listening to the sequence.<br>
+ * For data types without exact histograms (see {@link Histogram#isExactType(icy.type.DataType)}),
+ * values are binned between fixed bounds, given at construction (values outside the bounds fall in
+ * the first or last bin)
+ */
+public class IncrementalHistogram implements SequenceListener
+{
+    private final Sequence                       sequence;
+
+    private final int                            channel;
+
+    /**
+     * sum of the frame histograms
+     */
+    private final Histogram                      histogram;
+
+    private final List<Histogram>                frameHistograms = new ArrayList<Histogram>();
+
+    /**
+     * true for each frame that must be read again
+     */
+    private final List<Boolean>                  dirty           = new ArrayList<Boolean>();
+
+    /**
+     * images of each frame when it was last read
+     */
+    private final List<IcyBufferedImage[]>       frameImages     = new ArrayList<IcyBufferedImage[]>();
+
+    /**
+     * frame of each image read so far, to find the frame of a modified image in O(sizeZ)
+     */
+    private final Map<IcyBufferedImage, Integer> imageFrames     = new IdentityHashMap<IcyBufferedImage, Integer>();
+
+    /**
+     * Creates an incremental histogram of a sequence channel whose data type allows exact
+     * histograms (see {@link Histogram#isExactType(icy.type.DataType)})
+     *
+     * @param sequence
+     *            the sequence
+     * @param c
+     *            the channel
+     * @throws IllegalArgumentException
+     *             if the data type of the sequence does not allow exact histograms (the bounds of
+     *             the bins must then be given, see
+     *             {@link #IncrementalHistogram(Sequence, int, double, double, int)})
+     */
+    public IncrementalHistogram(Sequence sequence, int c)
+    {
+        this(sequence, c, createExactHistogram(sequence));
+    }
+
+    /**
+     * Creates an incremental histogram of a sequence channel, with bins spread between the given
+     * bounds (for data types without exact histograms)
+     *
+     * @param sequence
+     *            the sequence
+     * @param c
+     *            the channel
+     * @param min
+     *            the lowest expected value
+     * @param max
+     *            the highest expected value
+     * @param nbBins
+     *            the number of bins (only used if the data type does not allow an exact
+     *            histogram)
+     */
+    public IncrementalHistogram(Sequence sequence, int c, double min, double max, int nbBins)
+    {
+        this(sequence, c, Histogram.isExactType(sequence.getDataType_()) ? new Histogram(sequence.getDataType_()) : createHistogram(min, max, nbBins));
+    }
+
+    private IncrementalHistogram(Sequence sequence, int c, Histogram emptyHistogram)
+    {
+        if (c >= sequence.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+
+        this.sequence = sequence;
+        this.channel = c;
+        this.histogram = emptyHistogram;
+
+        sequence.addListener(this);
+    }
+
+    private static Histogram createExactHistogram(Sequence sequence)
+    {
+        if (!Histogram.isExactType(sequence.getDataType_()))
+            throw new IllegalArgumentException("Thresholder: the bounds of the histogram must be given for " + sequence.getDataType_() + " data");
+
+        return new Histogram(sequence.getDataType_());
+    }
+
+    private static Histogram createHistogram(double min, double max, int nbBins)
+    {
+        if (Double.isNaN(min) || Double.isNaN(max) || Double.isInfinite(min) || Double.isInfinite(max) || !(min < max))
+            throw new IllegalArgumentException("Thresholder: invalid histogram bounds [" + min + ", " + max + "]");
+
+        if (nbBins < 1) throw new IllegalArgumentException("Thresholder: the histogram must have at least one bin");
+
+        return new Histogram(min, max, nbBins);
+    }
+
+    /**
+     * Reads the given frame again, and updates the histogram accordingly
+     *
+     * @param t
+     *            the frame that was added or modified
+     */
+    public synchronized void update(int t)
+    {
+        while (frameHistograms.size() <= t)
+        {
+            frameHistograms.add(null);
+            dirty.add(Boolean.TRUE);
+            frameImages.add(null);
+        }
+
+        Histogram previous = frameHistograms.get(t);
+        if (previous != null) histogram.subtract(previous);
+
+        // (images moved to another frame since are left alone)
+        if (frameImages.get(t) != null)
+        {
+            for (IcyBufferedImage image : frameImages.get(t))
+                imageFrames.remove(image, t);
+        }
+
+        Histogram frameHistogram = histogram.createEmpty();
+        IcyBufferedImage[] images = new IcyBufferedImage[t < sequence.getSizeT() ? sequence.getSizeZ(t) : 0];
+
+        if (t < sequence.getSizeT())
+        {
+            int length = sequence.getSizeX() * sequence.getSizeY();
+
+            for (int z = 0; z < images.length; z++)
+            {
+                images[z] = sequence.getImage(t, z);
+                if (images[z] != null) imageFrames.put(images[z], t);
+
+                Object slice = sequence.getDataXY(t, z, channel);
+                if (slice != null) frameHistogram.add(slice, sequence.getDataType_(), 0, length);
+            }
+        }
+
+        histogram.add(frameHistogram);
+        frameHistograms.set(t, frameHistogram);
+        dirty.set(t, Boolean.FALSE);
+        frameImages.set(t, images);
+    }
+
+    /**
+     * Updates the frames that were added or modified since the last update. If frames were removed,
+     * all the frames are read again (any frame may have been removed, shifting the following ones)
+     */
+    public synchronized void refresh()
+    {
+        int sizeT = sequence.getSizeT();
+
+        if (frameHistograms.size() > sizeT) invalidateAll();
+
+        for (int t = 0; t < sizeT; t++)
+            if (t >= dirty.size() || dirty.get(t)) update(t);
+    }
+
+    /**
+     * Forgets all the frame histograms (all the frames are read again on the next refresh)
+     */
+    private void invalidateAll()
+    {
+        frameHistograms.clear();
+        dirty.clear();
+        frameImages.clear();
+        imageFrames.clear();
+        histogram.clear();
+    }
+
+    /**
+     * @return a copy of the histogram of all the frames
+     */
+    public synchronized Histogram getHistogram()
+    {
+        refresh();
+
+        Histogram copy = histogram.createEmpty();
+        copy.add(histogram);
+        return copy;
+    }
+
+    /**
+     * @param t
+     *            a frame
+     * @return a copy of the histogram of the given frame
+     */
+    public synchronized Histogram getHistogram(int t)
+    {
+        refresh();
+
+        Histogram copy = histogram.createEmpty();
+        copy.add(frameHistograms.get(t));
+        return copy;
+    }
+
+    /**
+     * Computes K-means thresholds over all the frames, without reading the frames again unless
+     * they were modified (see {@link KMeans#computeKMeansThresholds(Histogram, int, int)})
+     *
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins (must be the number of bins of this histogram for
+     *            data types without exact histograms)
+     * @return an array of thresholds of size [nbClasses-1]
+     */
+    public synchronized double[] getKMeansThresholds(int nbClasses, int nbBins)
+    {
+        refresh();
+
+        return KMeans.computeKMeansThresholds(histogram, nbClasses, nbBins);
+    }
+
+    /**
+     * Computes multi-level Otsu thresholds over all the frames, without reading the frames again
+     * unless they were modified (see {@link MultiOtsu#computeOtsuThresholds(Histogram, int, int)})
+     *
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins (must be the number of bins of this histogram for
+     *            data types without exact histograms)
+     * @return an array of thresholds of size [nbClasses-1]
+     */
+    public synchronized double[] getOtsuThresholds(int nbClasses, int nbBins)
+    {
+        refresh();
+
+        return MultiOtsu.computeOtsuThresholds(histogram, nbClasses, nbBins);
+    }
+
+    /**
+     * Stops listening to the sequence (further modifications must be notified with
+     * {@link #update(int)})
+     */
+    public void dispose()
+    {
+        sequence.removeListener(this);
+    }
+
+    @Override
+    public void sequenceChanged(SequenceEvent event)
+    {
+        if (event.getSourceType() != SequenceEventSourceType.SEQUENCE_DATA) return;
+
+        Object source = event.getSource();
+
+        synchronized (this)
+        {
+            int frame = source instanceof IcyBufferedImage ? findFrame((IcyBufferedImage) source) : -1;
+
+            // unknown (e.g. removed) image: read all the frames again
+            if (frame < 0) invalidateAll();
+            // (new frames are read on the next refresh anyway)
+            else if (frame < dirty.size()) dirty.set(frame, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return the frame holding the given image, or -1 if the image is not in the sequence
+     */
+    private int findFrame(IcyBufferedImage image)
+    {
+        // image read before (and not moved since)
+        Integer frame = imageFrames.get(image);
+        if (frame != null && containsImage(frame, image)) return frame;
+
+        // otherwise, most likely an image of a new frame: the last frames are searched first
+        for (int t = sequence.getSizeT() - 1; t >= 0; t--)
+            if (containsImage(t, image)) return t;
+
+        return -1;
+    }
+
+    private boolean containsImage(int t, IcyBufferedImage image)
+    {
+        if (t >= sequence.getSizeT()) return false;
+
+        for (int z = 0; z < sequence.getSizeZ(t); z++)
+            if (sequence.getImage(t, z) == image) return true;
+
+        return false;
+    }
+
+    @Override
+    public void sequenceClosed(Sequence closedSequence)
+    {
+        dispose();
+    }
+}
@@ -1,12 +1,16 @@
 package plugins.adufour.thresholder;
 
+import java.util.Arrays;
+
 import icy.sequence.Sequence;
-import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
 
 public class KMeans
 {
 	public static final int DEFAULT_KMEANS_BINS = 255;
 
+	public static final int DEFAULT_KMEANS_MAX_ITERATIONS = 10000;
+
 	/**
 	 * Calculates the optimal thresholds on the input data for the given number of classes and
 	 * default bins size
@@ -60,48 +64,28 @@ public class KMeans
 	 */
 	public static double[] computeKMeansThresholds(Sequence input, int c, int nbClasses, int binPrecision)
 	{
-		double[] thresholds = new double[nbClasses - 1];
-
-		input.updateChannelsBounds(true);
-		double[] minmax = input.getChannelBounds(c);
-		double min = minmax[0], max = minmax[1];
-		double fact = (binPrecision - 1) / (max - min);
-		double[] histo = new double[binPrecision];
+		ThresholdRun run = ThresholdMetrics.begin("K-means", false);
 
-		// histogram computation
+		try
 		{
-			double[] sliceXY = new double[input.getSizeX() * input.getSizeY()];
-
-			for (int t = 0; t < input.getSizeT(); t++)
-				for (int z = 0; z < input.getSizeZ(); z++)
-				{
-					Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), sliceXY, input.isSignedDataType());
-					for (double d : sliceXY)
-						histo[(int) ((d - min) * fact)]++;
-				}
+			return computeKMeansThresholds(Histogram.compute(input, c, -1, binPrecision), nbClasses, binPrecision);
 		}
-
-		int[] centers = kMeans_Histogram1D(histo, nbClasses);
-
-		// Compute thresholds between class centers
-
-		java.util.Arrays.sort(centers);
-		for (int k = 1; k < nbClasses; k++)
+		finally
 		{
-			thresholds[k - 1] = min + (centers[k - 1] + (centers[k] - centers[k - 1]) / 2.0) / fact;
+			ThresholdMetrics.end(run);
 		}
-
-		return thresholds;
 	}
 
 	/**
-	 * Calculates the optimal thresholds on the specified channel of the input data for the given
-	 * number of classes and bins size
+	 * Calculates the optimal thresholds on the specified channel and frame of the input data for
+	 * the given number of classes and bins size
 	 * 
 	 * @param input
 	 *            the input sequence
 	 * @param c
 	 *            the channel on which to compute the threshold(s)
+	 * @param t
+	 *            the frame on which to compute the threshold(s)
 	 * @param nbClasses
 	 *            the number of classes to extract
 	 * @param binPrecision
@@ -110,67 +94,160 @@ public class KMeans
 	 */
 	public static double[] computeKMeansThresholds(Sequence input, int c, int t, int nbClasses, int binPrecision)
 	{
-		double[] thresholds = new double[nbClasses - 1];
-
-		// compute min/max on the current stack
-        double min = input.getImage(t, 0).getChannelMin(c);
-        double max = input.getImage(t, 0).getChannelMax(c);
-        
-        for (int z = 1; z < input.getSizeZ(); z++)
-        {
-            double[] sliceBounds = input.getImage(t, z).getChannelBounds(c);
-            if (sliceBounds[0] < min) min = sliceBounds[0];
-            if (sliceBounds[1] > max) max = sliceBounds[1];
-        }
-		
-		double fact = (binPrecision - 1) / (max - min);
-		double[] histo = new double[binPrecision];
+		ThresholdRun run = ThresholdMetrics.begin("K-means", false);
 
-		// histogram computation
+		try
 		{
-			double[] sliceXY = new double[input.getSizeX() * input.getSizeY()];
-
-			for (int z = 0; z < input.getSizeZ(); z++)
-			{
-				Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), sliceXY, input.isSignedDataType());
-				for (double d : sliceXY)
-					histo[(int) ((d - min) * fact)]++;
-			}
+			return computeKMeansThresholds(Histogram.compute(input, c, t, binPrecision), nbClasses, binPrecision);
+		}
+		finally
+		{
+			ThresholdMetrics.end(run);
 		}
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the given histogram for the given number of classes
+	 * and bins size
+	 * 
+	 * @param histogram
+	 *            the intensity histogram of the data
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param binPrecision
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds of size [nbClasses-1]
+	 */
+	public static double[] computeKMeansThresholds(Histogram histogram, int nbClasses, int binPrecision)
+	{
+		long start = ThresholdMetrics.start();
+
+		double[] thresholds = new double[nbClasses - 1];
+
+		double min = histogram.getMin(), max = histogram.getMax();
+		double fact = (binPrecision - 1) / (max - min);
+		double[] histo = histogram.getBins(binPrecision);
 
 		int[] centers = kMeans_Histogram1D(histo, nbClasses);
 
 		// Compute thresholds between class centers
 
-		java.util.Arrays.sort(centers);
+		Arrays.sort(centers);
 		for (int k = 1; k < nbClasses; k++)
 		{
 			thresholds[k - 1] = min + (centers[k - 1] + (centers[k] - centers[k - 1]) / 2.0) / fact;
 		}
 
+		ThresholdMetrics.record(Phase.CLUSTERING, start, 0);
+
 		return thresholds;
 	}
 
+	/**
+	 * Estimates the optimal thresholds on a sample of the specified channel and frame of the input
+	 * data, enlarging the sample until the estimated error of the thresholds is below the given
+	 * tolerance (see {@link ThresholdSampler}). This is much faster than
+	 * {@link #computeKMeansThresholds(Sequence, int, int, int, int)} on large sequences
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param t
+	 *            the frame on which to compute the threshold(s), or -1 to use all frames
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param binPrecision
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @param tolerance
+	 *            the largest acceptable error on the thresholds (in intensity units)
+	 * @return the estimated thresholds (of size [nbClasses-1]) and their estimated error
+	 */
+	public static ThresholdEstimate estimateKMeansThresholds(Sequence input, int c, int t, int nbClasses, int binPrecision, double tolerance)
+	{
+		return ThresholdSampler.estimateKMeansThresholds(input, c, t, nbClasses, binPrecision, tolerance);
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the specified channel of the input data for the given
+	 * number of classes and bins size, either globally or for each frame independently (frames
+	 * are processed in parallel, see
+	 * {@link #computeKMeansThresholds(Sequence, int, boolean, int, int, int)})
+	 * 
+	 * @param inSeq
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param timeDependent
+	 *            true to compute the thresholds of each frame independently
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param nbBins
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds of size [inSeq.getSizeT()][nbClasses-1]
+	 */
 	public static double[][] computeKMeansThresholds(Sequence inSeq, int c, boolean timeDependent, short nbClasses, int nbBins)
 	{
-		double[][] thrs = new double[inSeq.getSizeT()][];
+		return computeKMeansThresholds(inSeq, c, timeDependent, nbClasses, nbBins, SliceExecutor.getDefaultThreadCount());
+	}
 
-		if (timeDependent)
+	/**
+	 * Calculates the optimal thresholds on the specified channel of the input data for the given
+	 * number of classes and bins size, either globally or for each frame independently. Frames
+	 * are independent, and are therefore processed in parallel (each thread reusing its own
+	 * histogram buffer from one frame to the next)
+	 * 
+	 * @param inSeq
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param timeDependent
+	 *            true to compute the thresholds of each frame independently
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param nbBins
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @param nbThreads
+	 *            the number of frames processed in parallel (1 to run sequentially)
+	 * @return an array of thresholds of size [inSeq.getSizeT()][nbClasses-1]
+	 */
+	public static double[][] computeKMeansThresholds(final Sequence inSeq, final int c, boolean timeDependent, final int nbClasses, final int nbBins, int nbThreads)
+	{
+		ThresholdRun run = ThresholdMetrics.begin("K-means", false);
+
+		try
 		{
-			for (int t = 0; t < thrs.length; t++)
+			if (timeDependent)
 			{
-				thrs[t] = computeKMeansThresholds(inSeq, c, t, nbClasses, nbBins);
+				return FrameThresholds.computePerFrame(inSeq.getSizeT(), new FrameThresholds.FrameWorker<Histogram>()
+				{
+					@Override
+					Histogram createBuffer()
+					{
+						return FrameThresholds.createHistogramBuffer(inSeq);
+					}
+
+					@Override
+					double[] computeThresholds(int t, Histogram buffer)
+					{
+						return computeKMeansThresholds(FrameThresholds.computeHistogram(inSeq, c, t, nbBins, buffer), nbClasses, nbBins);
+					}
+				}, nbThreads);
 			}
-		}
-		else
-		{
+
+			double[][] thrs = new double[inSeq.getSizeT()][];
+
 			double[] thr = computeKMeansThresholds(inSeq, c, nbClasses, nbBins);
 
 			for (int i = 0; i < thrs.length; i++)
 				thrs[i] = thr;
-		}
 
-		return thrs;
+			return thrs;
+		}
+		finally
+		{
+			ThresholdMetrics.end(run);
+		}
 	}
 
 	/**
@@ -185,9 +262,40 @@ public class KMeans
 	 */
 	public static int[] kMeans_Histogram1D(double[] histogram, int nbClasses)
 	{
+		return kMeans_Histogram1D(histogram, nbClasses, DEFAULT_KMEANS_MAX_ITERATIONS);
+	}
+
+	/**
+	 * KMeans classification algorithm, optimized for 1D histogram data. The algorithm is
+	 * initialized by spacing the class centers equally.<br>
+	 * Cumulative sums of the histogram are computed once (O(bins)), after which each bin is
+	 * assigned to its closest center by simply placing the class boundaries at the midpoints
+	 * between sorted centers, so that each iteration costs O(classes)
+	 * 
+	 * @param histogram
+	 *            the histogram to classify
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param maxIterations
+	 *            the maximum number of iterations (in case the centers do not converge)
+	 * @return the optimal class centers after convergence
+	 */
+	public static int[] kMeans_Histogram1D(double[] histogram, int nbClasses, int maxIterations)
+	{
+		int nbBins = histogram.length;
+
+		// cumulative number of elements and sum of bin indices
+		// (the values are integers, hence the sums are exact)
+		double[] cumElements = new double[nbBins + 1];
+		double[] cumSums = new double[nbBins + 1];
+
+		for (int i = 0; i < nbBins; i++)
+		{
+			cumElements[i + 1] = cumElements[i] + histogram[i];
+			cumSums[i + 1] = cumSums[i] + i * histogram[i];
+		}
+
 		int[] centers = new int[nbClasses];
-		double[] sums = new double[nbClasses];
-		double[] nbElements = new double[nbClasses];
 
 		// basic class initialization : regularly divide the space
 
@@ -196,51 +304,65 @@ public class KMeans
 			centers[i] = (int) ((histogram.length - 1f) * (i + 1f) / (nbClasses + 1f));
 		}
 
+		// class indices sorted by center (then by index)
+		int[] order = new int[nbClasses];
+		for (int k = 0; k < nbClasses; k++)
+			order[k] = k;
+
+		// bins [lower[k], upper[k]) belong to class k
+		int[] lower = new int[nbClasses];
+		int[] upper = new int[nbClasses];
+
 		// main loop
 
 		boolean convergence = false;
 
-		while (!convergence)
+		int iteration = 0;
+
+		for (; !convergence && iteration < maxIterations; iteration++)
 		{
 			// assume the convergence is reached
 			// (invalidate this assumption later if class means move)
 			convergence = true;
 
-			java.util.Arrays.fill(nbElements, 0);
-			java.util.Arrays.fill(sums, 0);
+			sortByCenter(order, centers);
+
+			// assign each bin to the closest center. Among classes sharing the same center, the
+			// lowest index takes all the bins (the others remain empty), and bins equidistant to
+			// two centers go to the class with the lowest index
+			Arrays.fill(lower, 0);
+			Arrays.fill(upper, 0);
+
+			int previous = order[0];
+			lower[previous] = 0;
 
-			for (int i = 0; i < histogram.length; i++)
+			for (int j = 1; j < nbClasses; j++)
 			{
-				int closestClass = 0;
-				double minDistance = Double.MAX_VALUE;
+				int next = order[j];
 
-				// compute the shortest distance from the current bin
-				// to a class center and assign the bin to that class
-				for (int k = 0; k < nbClasses; k++)
-				{
-					double distance = Math.abs(i - centers[k]);
+				if (centers[next] == centers[previous]) continue;
 
-					if (distance < minDistance)
-					{
-						minDistance = distance;
-						closestClass = k;
-					}
-				}
+				int sum = centers[previous] + centers[next];
+				int boundary = (sum + 1) >> 1;
+				if ((sum & 1) == 0 && previous < next) boundary++;
+				boundary = Math.max(lower[previous], Math.min(nbBins, boundary));
 
-				// to update each class center to the mean,
-				// accumulate both number and sum per class
-				double nbElemInCurrentBin = histogram[i];
-				sums[closestClass] += i * nbElemInCurrentBin;
-				nbElements[closestClass] += nbElemInCurrentBin;
+				upper[previous] = boundary;
+				lower[next] = boundary;
+				previous = next;
 			}
+			upper[previous] = nbBins;
 
 			// once all bins have been assigned to a class,
 			// the class centers can be moved toward the new means
 
 			for (int k = 0; k < nbClasses; k++)
 			{
+				double nbElements = cumElements[upper[k]] - cumElements[lower[k]];
+				double sum = cumSums[upper[k]] - cumSums[lower[k]];
+
 				int oldCenter = centers[k];
-				int newCenter = (int) (sums[k] / nbElements[k]);
+				int newCenter = (int) (sum / nbElements);
 
 				convergence &= (oldCenter == newCenter);
 
@@ -248,6 +370,29 @@ public class KMeans
 			}
 		}
 
+		ThresholdMetrics.recordKMeans(iteration, convergence);
+
 		return centers;
 	}
+
+	/**
+	 * Sorts the class indices by increasing center (then by increasing index). Insertion sort is
+	 * used since the order rarely changes between two iterations
+	 */
+	private static void sortByCenter(int[] order, int[] centers)
+	{
+		for (int i = 1; i < order.length; i++)
+		{
+			int k = order[i];
+			int j = i - 1;
+
+			while (j >= 0 && (centers[order[j]] > centers[k] || (centers[order[j]] == centers[k] && order[j] > k)))
+			{
+				order[j + 1] = order[j];
+				j--;
+			}
+
+			order[j + 1] = k;
+		}
+	}
 }
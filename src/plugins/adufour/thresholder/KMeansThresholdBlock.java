@@ -6,18 +6,46 @@ import icy.sequence.Sequence;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
 import plugins.adufour.vars.gui.model.IntegerRangeModel;
+import plugins.adufour.vars.lang.Var;
+import plugins.adufour.vars.lang.VarBoolean;
 import plugins.adufour.vars.lang.VarDoubleArrayNative;
 import plugins.adufour.vars.lang.VarInteger;
+import plugins.adufour.vars.lang.VarIntegerArrayNative;
 import plugins.adufour.vars.lang.VarSequence;
 import plugins.adufour.vars.util.VarException;
 
 public class KMeansThresholdBlock extends Plugin implements Block, PluginBundled
 {
-    VarSequence          input      = new VarSequence("Input", null);
-    VarInteger           channel    = new VarInteger("Channel", 0);
-    VarInteger           nbClasses  = new VarInteger("Classes", 2);
+    VarSequence           input         = new VarSequence("Input", null);
+    VarInteger            channel       = new VarInteger("Channel", 0);
+    VarInteger            nbClasses     = new VarInteger("Classes", 2);
+    VarInteger            nbBins        = new VarInteger("Bins", KMeans.DEFAULT_KMEANS_BINS);
+    VarBoolean            perFrame      = new VarBoolean("Per frame", false);
     
-    VarDoubleArrayNative thresholds = new VarDoubleArrayNative("thresholds", new double[] {});
+    /**
+     * Frame whose thresholds are given in the "thresholds" output when computing per frame (-1 to
+     * give the thresholds of the whole sequence)
+     */
+    VarInteger            frame         = new VarInteger("Frame", -1);
+    
+    /**
+     * Additional channels to compute thresholds for (empty by default)
+     */
+    VarIntegerArrayNative channelSubset = new VarIntegerArrayNative("Channel subset", new int[] {});
+    
+    VarDoubleArrayNative  thresholds    = new VarDoubleArrayNative("thresholds", new double[] {});
+    
+    /**
+     * Thresholds of each channel of the subset, concatenated in the order of the subset (i.e.
+     * (nbClasses-1) values per channel)
+     */
+    VarDoubleArrayNative  subsetThresholds = new VarDoubleArrayNative("subset thresholds", new double[] {});
+    
+    /**
+     * Thresholds of each frame, of size [sizeT][nbClasses-1] (computed on each frame independently
+     * if "Per frame" is set, otherwise the thresholds of the whole sequence for every frame)
+     */
+    Var<double[][]>       frameThresholds  = new Var<double[][]>("frame thresholds", double[][].class);
     
     @Override
     public void run()
@@ -32,10 +60,84 @@ public class KMeansThresholdBlock extends Plugin implements Block, PluginBundled
         if (c >= sizeC) throw new VarException(channel, "Thresholder: channel " + c + " does not exist");
         
         int nC = nbClasses.getValue();
+        int bins = nbBins.getValue();
+        
+        // -1 means all frames
+        int t = -1;
+        
+        if (perFrame.getValue())
+        {
+            t = frame.getValue();
+            if (t < -1 || t >= seq.getSizeT()) throw new VarException(frame, "Thresholder: frame " + t + " does not exist");
+            
+            double[][] thrsT = computeFrameThresholds(seq, c, nC, bins);
+            frameThresholds.setValue(thrsT);
+            
+            thresholds.setValue(t == -1 ? computeThresholds(seq, c, -1, nC, bins) : thrsT[t].clone());
+        }
+        else
+        {
+            double[] thrs = computeThresholds(seq, c, -1, nC, bins);
+            thresholds.setValue(thrs);
+            
+            double[][] thrsT = new double[seq.getSizeT()][];
+            for (int i = 0; i < thrsT.length; i++)
+                thrsT[i] = thrs.clone();
+            frameThresholds.setValue(thrsT);
+        }
+        
+        int[] subset = channelSubset.getValue();
+        
+        if (subset == null || subset.length == 0)
+        {
+            subsetThresholds.setValue(new double[] {});
+            return;
+        }
         
-        double[][] thrs = KMeans.computeKMeansThresholds(seq, nC);
+        double[] subsetThrs = new double[subset.length * (nC - 1)];
         
-        thresholds.setValue(thrs[c]);
+        for (int i = 0; i < subset.length; i++)
+        {
+            int subsetC = subset[i];
+            if (subsetC < 0 || subsetC >= sizeC) throw new VarException(channelSubset, "Thresholder: channel " + subsetC + " does not exist");
+            
+            double[] thrs = subsetC == c ? thresholds.getValue() : computeThresholds(seq, subsetC, t, nC, bins);
+            System.arraycopy(thrs, 0, subsetThrs, i * (nC - 1), nC - 1);
+        }
+        
+        subsetThresholds.setValue(subsetThrs);
+    }
+    
+    /**
+     * Computes the thresholds of a single channel, either over the whole sequence (t = -1) or on
+     * the given frame (cached until the sequence data changes)
+     */
+    private static double[] computeThresholds(Sequence seq, int c, int t, int nbClasses, int nbBins)
+    {
+        // protocols often threshold the same data repeatedly
+        return ThresholdCache.getKMeansThresholds(seq, c, t, nbClasses, nbBins);
+    }
+    
+    /**
+     * Computes the thresholds of each frame of a single channel independently (frames in parallel,
+     * cached until the sequence data changes)
+     */
+    private static double[][] computeFrameThresholds(final Sequence seq, final int c, final int nbClasses, final int nbBins)
+    {
+        return FrameThresholds.computePerFrame(seq.getSizeT(), new FrameThresholds.FrameWorker<Histogram>()
+        {
+            @Override
+            Histogram createBuffer()
+            {
+                return FrameThresholds.createHistogramBuffer(seq);
+            }
+            
+            @Override
+            double[] computeThresholds(int t, Histogram buffer)
+            {
+                return ThresholdCache.getKMeansThresholds(seq, c, t, nbClasses, nbBins, buffer);
+            }
+        }, SliceExecutor.getDefaultThreadCount());
     }
     
     @Override
@@ -43,16 +145,26 @@ public class KMeansThresholdBlock extends Plugin implements Block, PluginBundled
     {
         nbClasses.setDefaultEditorModel(new IntegerRangeModel(2, 2, 65535, 1));
         channel.setDefaultEditorModel(new IntegerRangeModel(0, 0, 65535, 1));
+        nbBins.setDefaultEditorModel(new IntegerRangeModel(KMeans.DEFAULT_KMEANS_BINS, 2, 65536, 1));
+        frame.setDefaultEditorModel(new IntegerRangeModel(-1, -1, 65535, 1));
+        frame.setOptional(true);
+        channelSubset.setOptional(true);
         
         inputMap.add("Input", input);
         inputMap.add("Channel", channel);
         inputMap.add("Classes", nbClasses);
+        inputMap.add("Bins", nbBins);
+        inputMap.add("Per frame", perFrame);
+        inputMap.add("Frame", frame);
+        inputMap.add("Channel subset", channelSubset);
     }
     
     @Override
     public void declareOutput(VarList outputMap)
     {
         outputMap.add("thresholds", thresholds);
+        outputMap.add("subset thresholds", subsetThresholds);
+        outputMap.add("frame thresholds", frameThresholds);
     }
     
     @Override
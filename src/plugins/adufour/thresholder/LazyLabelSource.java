@@ -0,0 +1,202 @@
+package plugins.adufour.thresholder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Labeled planes of a sequence channel, only computed when they are first read (e.g. by a
+ * downstream computation, or to be written to a {@link PlaneStore}), rather than all at once. Computed
+ * planes are kept in a bounded cache (least recently used planes are dropped first, and recomputed
+ * if read again), so that the memory footprint does not depend on the size of the input.<br>
+ * The planes are computed from the current data of the input sequence, which should therefore not
+ * be modified while this source is in use. To obtain a regular sequence, use
+ * {@link Thresholder#threshold(Sequence, int, double[][], boolean, int)}
+ */
+public class LazyLabelSource implements PlaneSource
+{
+    /**
+     * Default maximum number of planes kept in memory
+     */
+    public static final int                      DEFAULT_CACHE_SIZE = 64;
+
+    private final Sequence                       input;
+
+    private final int                            channel;
+
+    private final double[][]                     thresholdsT;
+
+    private final DataType                       labelType;
+
+    /**
+     * lookup table of each frame (see {@link ThresholdKernels#createLookupTable(DataType, double[])}),
+     * created along with the first plane of the frame
+     */
+    private final short[][]                      lookupTables;
+
+    /**
+     * computed planes, indexed by t * sizeZ + z, in access order
+     */
+    private final LinkedHashMap<Integer, Object> cache;
+
+    /**
+     * Creates a lazy label source
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @param cacheSize
+     *            the maximum number of planes kept in memory
+     */
+    public LazyLabelSource(Sequence input, int c, double[][] thresholdsT, final int cacheSize)
+    {
+        if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+        if (cacheSize < 1) throw new IllegalArgumentException("Thresholder: the cache must hold at least one plane");
+
+        int maxClass = 0;
+
+        for (int t = 0; t < input.getSizeT(); t++)
+        {
+            if (thresholdsT[t] == null || thresholdsT[t].length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+
+            if (thresholdsT[t].length > maxClass) maxClass = thresholdsT[t].length;
+        }
+
+        this.input = input;
+        this.channel = c;
+        this.thresholdsT = thresholdsT;
+        this.labelType = ThresholdKernels.getLabelDataType(maxClass);
+        this.lookupTables = new short[input.getSizeT()][];
+
+        this.cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public int getSizeX()
+    {
+        return input.getSizeX();
+    }
+
+    @Override
+    public int getSizeY()
+    {
+        return input.getSizeY();
+    }
+
+    @Override
+    public int getSizeZ()
+    {
+        return input.getSizeZ();
+    }
+
+    @Override
+    public int getSizeT()
+    {
+        return input.getSizeT();
+    }
+
+    /**
+     * @return the data type of the labels (see {@link ThresholdKernels#getLabelDataType(int)})
+     */
+    @Override
+    public DataType getDataType()
+    {
+        return labelType;
+    }
+
+    /**
+     * Returns the specified labeled plane, computing it if it is not in the cache. The returned
+     * array is shared with the cache, and must not be modified
+     */
+    @Override
+    public Object readPlane(int t, int z)
+    {
+        if (t < 0 || t >= getSizeT() || z < 0 || z >= getSizeZ()) throw new IndexOutOfBoundsException("Thresholder: no plane at t=" + t + ", z=" + z);
+
+        Integer key = t * getSizeZ() + z;
+
+        synchronized (cache)
+        {
+            Object labels = cache.get(key);
+            if (labels != null) return labels;
+        }
+
+        // computed outside the lock, so that distinct planes are computed concurrently
+        Object labels = computePlane(t, z);
+
+        synchronized (cache)
+        {
+            Object cached = cache.get(key);
+            if (cached != null) return cached;
+
+            cache.put(key, labels);
+        }
+
+        return labels;
+    }
+
+    /**
+     * @return the number of planes currently held in memory
+     */
+    public int getCachedPlaneCount()
+    {
+        synchronized (cache)
+        {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Drops all the computed planes (e.g. after the input data has changed)
+     */
+    public void clearCache()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+    }
+
+    private Object computePlane(int t, int z)
+    {
+        int length = getSizeX() * getSizeY();
+
+        Object labels = RawPlanes.createArray(labelType, length);
+
+        ThresholdKernels.label(input.getDataXY(t, z, channel), input.getDataType_(), thresholdsT[t], getLookupTable(t), labels, labelType, 0, length, 0);
+
+        return labels;
+    }
+
+    /**
+     * @return the lookup table of the given frame, or null if it is not worth using one
+     */
+    private short[] getLookupTable(int t)
+    {
+        DataType dataType = input.getDataType_();
+        double[] thresholds = thresholdsT[t];
+
+        if (!ThresholdKernels.isLookupTableWorthwhile(dataType, thresholds, (long) getSizeX() * getSizeY())) return null;
+
+        synchronized (lookupTables)
+        {
+            if (lookupTables[t] == null) lookupTables[t] = ThresholdKernels.createLookupTable(dataType, thresholds);
+
+            return lookupTables[t];
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package plugins.adufour.thresholder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import icy.type.DataType;
+
+/**
+ * Label store backed by a memory-mapped file, so that labeled planes live outside of the Java heap
+ * and can be reopened later without thresholding again. The file is mapped in windows of (at most)
+ * {@link #MAX_WINDOW_SIZE} bytes covering consecutive planes, to keep the number of mappings low
+ * on large stacks.<br>
+ * <br>
+ * File format (all header fields are big-endian):
+ * <ul>
+ * <li>bytes 0-7: the ASCII magic string <code>THRLABEL</code></li>
+ * <li>bytes 8-11: the format version (int, currently 1)</li>
+ * <li>bytes 12-27: sizeX, sizeY, sizeZ, sizeT (4 ints)</li>
+ * <li>bytes 28-31: the number of bytes per label (int: 1, 2 or 4, i.e. unsigned 8, 16 or 32-bit
+ * labels)</li>
+ * <li>bytes 32-35: the byte order of the labels (int: 0 for big-endian, 1 for little-endian)</li>
+ * <li>bytes 36-63: reserved (zeros)</li>
+ * <li>from byte 64: the planes, stored contiguously by frame then slice, i.e. plane (t, z) holds
+ * <code>sizeX * sizeY</code> labels (row by row) starting at byte
+ * <code>64 + (t * sizeZ + z) * sizeX * sizeY * bytesPerLabel</code></li>
+ * </ul>
+ * Note: mapped regions are released by the garbage collector once the store is closed (or no
+ * longer referenced) and the buffers obtained from {@link #getPlane(int, int)} are no longer
+ * referenced
+ */
+public class MappedLabelStore implements PlaneStore, PlaneSource
+{
+    private static final byte[]      MAGIC           = { 'T', 'H', 'R', 'L', 'A', 'B', 'E', 'L' };
+
+    private static final int         VERSION         = 1;
+
+    /**
+     * Size of the file header (in bytes)
+     */
+    public static final int          HEADER_SIZE     = 64;
+
+    /**
+     * Maximum size of a mapped region (in bytes), unless a single plane is larger
+     */
+    public static final long         MAX_WINDOW_SIZE = 1L << 30;
+
+    private final RandomAccessFile   file;
+
+    private final FileChannel        channel;
+
+    private final boolean            readOnly;
+
+    private final int                sizeX, sizeY, sizeZ, sizeT;
+
+    private final DataType           dataType;
+
+    private final ByteOrder          byteOrder;
+
+    private final int                planeBytes;
+
+    /**
+     * number of consecutive planes covered by each mapped window
+     */
+    private final int                planesPerWindow;
+
+    /**
+     * mapped windows (created on first access), window #i covering the planes indexed (by
+     * t * sizeZ + z) from i * planesPerWindow
+     */
+    private final MappedByteBuffer[] windows;
+
+    private MappedLabelStore(RandomAccessFile file, boolean readOnly, int sizeX, int sizeY, int sizeZ, int sizeT, DataType dataType,
+            ByteOrder byteOrder)
+    {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.readOnly = readOnly;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeT = sizeT;
+        this.dataType = dataType;
+        this.byteOrder = byteOrder;
+        this.planeBytes = (int) getPlaneBytes(sizeX, sizeY, getBytesPerLabel(dataType));
+        this.planesPerWindow = (int) Math.max(1, MAX_WINDOW_SIZE / Math.max(1, planeBytes));
+
+        int nbPlanes = sizeT * sizeZ;
+        this.windows = new MappedByteBuffer[(nbPlanes + planesPerWindow - 1) / planesPerWindow];
+    }
+
+    /**
+     * Creates (or overwrites) a label file
+     *
+     * @param file
+     *            the file to create
+     * @param sizeX
+     *            the width of each plane
+     * @param sizeY
+     *            the height of each plane
+     * @param sizeZ
+     *            the number of slices per frame
+     * @param sizeT
+     *            the number of frames
+     * @param dataType
+     *            the data type of the labels (UBYTE, USHORT or UINT, see
+     *            {@link ThresholdKernels#getLabelDataType(int)})
+     * @return the store, open for writing (and reading)
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public static MappedLabelStore create(File file, int sizeX, int sizeY, int sizeZ, int sizeT, DataType dataType) throws IOException
+    {
+        int bytesPerLabel = getBytesPerLabel(dataType);
+
+        // fails before creating the file if the planes cannot be mapped
+        getPlaneBytes(sizeX, sizeY, bytesPerLabel);
+
+        ByteOrder byteOrder = ByteOrder.nativeOrder();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(sizeX).putInt(sizeY).putInt(sizeZ).putInt(sizeT);
+        header.putInt(bytesPerLabel);
+        header.putInt(byteOrder == ByteOrder.BIG_ENDIAN ? 0 : 1);
+        header.clear();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) sizeT * sizeZ * sizeX * sizeY * bytesPerLabel);
+            RawPlanes.writeFully(raf.getChannel(), header, 0);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+
+        return new MappedLabelStore(raf, false, sizeX, sizeY, sizeZ, sizeT, dataType, byteOrder);
+    }
+
+    /**
+     * Opens an existing label file
+     *
+     * @param file
+     *            the file to open
+     * @param readOnly
+     *            true to open the file for reading only
+     * @return the store
+     * @throws IOException
+     *             if the file cannot be opened or is not a valid label file
+     */
+    public static MappedLabelStore open(File file, boolean readOnly) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            RawPlanes.readFully(raf.getChannel(), header, 0);
+            header.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not a label file");
+
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException(file + ": unsupported label file version (" + version + ")");
+
+            int sizeX = header.getInt(), sizeY = header.getInt(), sizeZ = header.getInt(), sizeT = header.getInt();
+
+            int bytesPerLabel = header.getInt();
+            DataType dataType = bytesPerLabel == 1 ? DataType.UBYTE : bytesPerLabel == 2 ? DataType.USHORT : DataType.UINT;
+            if (bytesPerLabel != getBytesPerLabel(dataType)) throw new IOException(file + ": invalid label size (" + bytesPerLabel + ")");
+            if ((long) sizeX * sizeY * bytesPerLabel > Integer.MAX_VALUE) throw new IOException(file + ": planes larger than 2 GiB are not supported");
+
+            ByteOrder byteOrder = header.getInt() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+            long expectedLength = HEADER_SIZE + (long) sizeT * sizeZ * sizeX * sizeY * bytesPerLabel;
+            if (raf.length() < expectedLength) throw new IOException(file + " is truncated (" + raf.length() + " bytes, expected: " + expectedLength + ")");
+
+            return new MappedLabelStore(raf, readOnly, sizeX, sizeY, sizeZ, sizeT, dataType, byteOrder);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of a plane (in bytes)
+     * @throws IllegalArgumentException
+     *             if a plane is too large to be mapped at once (i.e. larger than 2 GiB)
+     */
+    private static long getPlaneBytes(int sizeX, int sizeY, int bytesPerLabel)
+    {
+        long planeBytes = (long) sizeX * sizeY * bytesPerLabel;
+
+        if (planeBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Thresholder: planes larger than 2 GiB are not supported");
+
+        return planeBytes;
+    }
+
+    private static int getBytesPerLabel(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+            return 1;
+        case USHORT:
+            return 2;
+        case UINT:
+            return 4;
+        default:
+            throw new IllegalArgumentException("Labels must be stored as unsigned 8, 16 or 32-bit integers (not " + dataType + ")");
+        }
+    }
+
+    @Override
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    @Override
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    @Override
+    public int getSizeZ()
+    {
+        return sizeZ;
+    }
+
+    @Override
+    public int getSizeT()
+    {
+        return sizeT;
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return dataType;
+    }
+
+    /**
+     * Returns the labels of the specified plane without copying them (zero-copy access)
+     *
+     * @param t
+     *            the frame of the plane
+     * @param z
+     *            the slice of the plane
+     * @return a buffer over the mapped plane, positioned on the first label (pixel (0, 0)), in the
+     *         byte order of the file
+     * @throws IOException
+     *             if the plane cannot be mapped
+     */
+    public ByteBuffer getPlane(int t, int z) throws IOException
+    {
+        if (t < 0 || t >= sizeT || z < 0 || z >= sizeZ) throw new IndexOutOfBoundsException("No plane at t=" + t + ", z=" + z);
+
+        int index = t * sizeZ + z;
+        int w = index / planesPerWindow;
+
+        MappedByteBuffer window;
+
+        synchronized (windows)
+        {
+            window = windows[w];
+
+            if (window == null)
+            {
+                int nbPlanes = Math.min(planesPerWindow, sizeT * sizeZ - w * planesPerWindow);
+                long windowStart = HEADER_SIZE + (long) w * planesPerWindow * planeBytes;
+
+                window = channel.map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, windowStart, (long) nbPlanes * planeBytes);
+                windows[w] = window;
+            }
+        }
+
+        // independent position and limit for each caller
+        ByteBuffer plane = window.duplicate();
+        int offset = (index - w * planesPerWindow) * planeBytes;
+        plane.position(offset).limit(offset + planeBytes);
+
+        return plane.slice().order(byteOrder);
+    }
+
+    @Override
+    public Object readPlane(int t, int z) throws IOException
+    {
+        Object labels = RawPlanes.createArray(dataType, sizeX * sizeY);
+        RawPlanes.get(getPlane(t, z), labels);
+        return labels;
+    }
+
+    @Override
+    public void writePlane(int t, int z, Object labels) throws IOException
+    {
+        if (readOnly) throw new IOException("This label store is read-only");
+
+        RawPlanes.put(labels, getPlane(t, z));
+    }
+
+    /**
+     * Flushes the planes written so far to the file
+     */
+    public void flush()
+    {
+        synchronized (windows)
+        {
+            if (readOnly) return;
+
+            for (MappedByteBuffer window : windows)
+                if (window != null) window.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+
+        // the windows are unmapped once garbage collected
+        synchronized (windows)
+        {
+            Arrays.fill(windows, null);
+        }
+
+        file.close();
+    }
+}
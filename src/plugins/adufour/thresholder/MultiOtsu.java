@@ -0,0 +1,258 @@
+package plugins.adufour.thresholder;
+
+import icy.sequence.Sequence;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+
+/**
+ * Exact multi-level Otsu thresholding. The optimal partition of the histogram into contiguous
+ * classes (maximizing the between-class variance, or equivalently minimizing the within-class
+ * variance) is found by dynamic programming over cumulative sums. Since the optimal split point is
+ * monotonic in the position of the last bin, each level is solved by divide and conquer in
+ * O(bins log(bins)), which remains tractable for 65536 bins and many classes
+ */
+public class MultiOtsu
+{
+	/**
+	 * Calculates the optimal thresholds on the specified channel of the input data for the given
+	 * number of classes and bins size
+	 *
+	 * @param input
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param binPrecision
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds for the given channel, of size [nbClasses-1]
+	 */
+	public static double[] computeOtsuThresholds(Sequence input, int c, int nbClasses, int binPrecision)
+	{
+		return computeOtsuThresholds(Histogram.compute(input, c, -1, binPrecision), nbClasses, binPrecision);
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the specified channel and frame of the input data for
+	 * the given number of classes and bins size
+	 *
+	 * @param input
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param t
+	 *            the frame on which to compute the threshold(s)
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param binPrecision
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds for the given channel, of size [nbClasses-1]
+	 */
+	public static double[] computeOtsuThresholds(Sequence input, int c, int t, int nbClasses, int binPrecision)
+	{
+		return computeOtsuThresholds(Histogram.compute(input, c, t, binPrecision), nbClasses, binPrecision);
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the specified channel of the input data for the given
+	 * number of classes and bins size, either globally or for each frame independently
+	 *
+	 * @param inSeq
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param timeDependent
+	 *            true to compute the thresholds of each frame independently
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param nbBins
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds of size [inSeq.getSizeT()][nbClasses-1]
+	 */
+	public static double[][] computeOtsuThresholds(Sequence inSeq, int c, boolean timeDependent, int nbClasses, int nbBins)
+	{
+		return computeOtsuThresholds(inSeq, c, timeDependent, nbClasses, nbBins, SliceExecutor.getDefaultThreadCount());
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the specified channel of the input data for the given
+	 * number of classes and bins size, either globally or for each frame independently. Frames
+	 * are independent, and are therefore processed in parallel (each thread reusing its own
+	 * histogram buffer from one frame to the next)
+	 *
+	 * @param inSeq
+	 *            the input sequence
+	 * @param c
+	 *            the channel on which to compute the threshold(s)
+	 * @param timeDependent
+	 *            true to compute the thresholds of each frame independently
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param nbBins
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @param nbThreads
+	 *            the number of frames processed in parallel (1 to run sequentially)
+	 * @return an array of thresholds of size [inSeq.getSizeT()][nbClasses-1]
+	 */
+	public static double[][] computeOtsuThresholds(final Sequence inSeq, final int c, boolean timeDependent, final int nbClasses, final int nbBins, int nbThreads)
+	{
+		if (timeDependent)
+		{
+			return FrameThresholds.computePerFrame(inSeq.getSizeT(), new FrameThresholds.FrameWorker<Histogram>()
+			{
+				@Override
+				Histogram createBuffer()
+				{
+					return FrameThresholds.createHistogramBuffer(inSeq);
+				}
+
+				@Override
+				double[] computeThresholds(int t, Histogram buffer)
+				{
+					return computeOtsuThresholds(FrameThresholds.computeHistogram(inSeq, c, t, nbBins, buffer), nbClasses, nbBins);
+				}
+			}, nbThreads);
+		}
+
+		double[][] thrs = new double[inSeq.getSizeT()][];
+
+		double[] thr = computeOtsuThresholds(inSeq, c, nbClasses, nbBins);
+
+		for (int i = 0; i < thrs.length; i++)
+			thrs[i] = thr;
+
+		return thrs;
+	}
+
+	/**
+	 * Calculates the optimal thresholds on the given histogram for the given number of classes
+	 * and bins size
+	 *
+	 * @param histogram
+	 *            the intensity histogram of the data
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @param binPrecision
+	 *            the size of the histogram bins (higher is slower but more precise)
+	 * @return an array of thresholds of size [nbClasses-1]
+	 */
+	public static double[] computeOtsuThresholds(Histogram histogram, int nbClasses, int binPrecision)
+	{
+		long start = ThresholdMetrics.start();
+
+		double[] thresholds = new double[nbClasses - 1];
+
+		double min = histogram.getMin(), max = histogram.getMax();
+		double fact = (binPrecision - 1) / (max - min);
+
+		int[] boundaries = otsu_Histogram1D(histogram.getBins(binPrecision), nbClasses);
+
+		// a value falls in bin b or above if and only if it is above min + b / fact
+		for (int k = 0; k < boundaries.length; k++)
+			thresholds[k] = min + boundaries[k] / fact;
+
+		ThresholdMetrics.record(Phase.CLUSTERING, start, 0);
+
+		return thresholds;
+	}
+
+	/**
+	 * Multi-level Otsu classification algorithm for 1D histogram data
+	 *
+	 * @param histogram
+	 *            the histogram to classify
+	 * @param nbClasses
+	 *            the number of classes to extract
+	 * @return the optimal class boundaries (in increasing order), i.e. class k spans the bins
+	 *         [boundaries[k-1], boundaries[k]), of size [nbClasses-1]
+	 */
+	public static int[] otsu_Histogram1D(double[] histogram, int nbClasses)
+	{
+		int nbBins = histogram.length;
+
+		// cumulative number of elements and sum of bin indices
+		double[] cumElements = new double[nbBins + 1];
+		double[] cumSums = new double[nbBins + 1];
+
+		for (int i = 0; i < nbBins; i++)
+		{
+			cumElements[i + 1] = cumElements[i] + histogram[i];
+			cumSums[i + 1] = cumSums[i] + i * histogram[i];
+		}
+
+		// score[i]: best score for the first i bins with the current number of classes
+		double[] previousScore = new double[nbBins + 1];
+		double[] score = new double[nbBins + 1];
+
+		// split[k][i]: start of the last class for the first i bins in k+2 classes
+		int[][] split = new int[nbClasses - 1][nbBins + 1];
+
+		for (int i = 0; i <= nbBins; i++)
+			previousScore[i] = classScore(cumElements, cumSums, 0, i);
+
+		for (int k = 0; k < nbClasses - 1; k++)
+		{
+			solve(cumElements, cumSums, previousScore, score, split[k], 0, nbBins, 0, nbBins);
+
+			double[] tmp = previousScore;
+			previousScore = score;
+			score = tmp;
+		}
+
+		// backtrack the boundaries from the last class
+		int[] boundaries = new int[nbClasses - 1];
+
+		int end = nbBins;
+		for (int k = nbClasses - 2; k >= 0; k--)
+		{
+			end = split[k][end];
+			boundaries[k] = end;
+		}
+
+		return boundaries;
+	}
+
+	/**
+	 * Computes score[i] = max_j (previousScore[j] + classScore(j, i)) for i in [first, last],
+	 * knowing that the optimal j lies within [optFirst, optLast]
+	 */
+	private static void solve(double[] cumElements, double[] cumSums, double[] previousScore, double[] score, int[] split, int first, int last,
+			int optFirst, int optLast)
+	{
+		if (first > last) return;
+
+		int i = (first + last) >>> 1;
+
+		double bestScore = Double.NEGATIVE_INFINITY;
+		int bestSplit = optFirst;
+
+		for (int j = optFirst, end = Math.min(i, optLast); j <= end; j++)
+		{
+			double s = previousScore[j] + classScore(cumElements, cumSums, j, i);
+
+			if (s > bestScore)
+			{
+				bestScore = s;
+				bestSplit = j;
+			}
+		}
+
+		score[i] = bestScore;
+		split[i] = bestSplit;
+
+		solve(cumElements, cumSums, previousScore, score, split, first, i - 1, optFirst, bestSplit);
+		solve(cumElements, cumSums, previousScore, score, split, i + 1, last, bestSplit, optLast);
+	}
+
+	/**
+	 * The contribution of the class spanning bins [from, to) to the between-class variance (up to
+	 * constant terms), i.e. sum^2 / count
+	 */
+	private static double classScore(double[] cumElements, double[] cumSums, int from, int to)
+	{
+		double count = cumElements[to] - cumElements[from];
+		if (count == 0) return 0;
+
+		double sum = cumSums[to] - cumSums[from];
+		return sum * sum / count;
+	}
+}
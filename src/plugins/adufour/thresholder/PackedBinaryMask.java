@@ -0,0 +1,108 @@
+package plugins.adufour.thresholder;
+
+/**
+ * Binary (2-class) thresholding result storing one bit per pixel, i.e. 8 times less memory than an
+ * 8-bit labeled sequence (and 32 to 64 times less than a float or double one). Each slice is
+ * stored as an array of 64-bit words, where pixel <code>i = x + y * sizeX</code> is bit
+ * <code>i % 64</code> of word <code>i / 64</code>
+ */
+public class PackedBinaryMask
+{
+    private final int        sizeX, sizeY;
+
+    /**
+     * words of each slice, indexed by [t][z]
+     */
+    private final long[][][] words;
+
+    /**
+     * Creates an empty mask with the given dimensions
+     *
+     * @param sizeX
+     *            the width of the mask
+     * @param sizeY
+     *            the height of the mask
+     * @param sizeZ
+     *            the depth of the mask
+     * @param sizeT
+     *            the number of frames of the mask
+     */
+    public PackedBinaryMask(int sizeX, int sizeY, int sizeZ, int sizeT)
+    {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+
+        int nbWords = getNumberOfWords(sizeX * sizeY);
+
+        words = new long[sizeT][sizeZ][];
+        for (int t = 0; t < sizeT; t++)
+            for (int z = 0; z < sizeZ; z++)
+                words[t][z] = new long[nbWords];
+    }
+
+    /**
+     * @param nbPixels
+     *            a number of pixels
+     * @return the number of 64-bit words needed to store the given number of pixels
+     */
+    public static int getNumberOfWords(int nbPixels)
+    {
+        return (nbPixels + 63) >>> 6;
+    }
+
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    public int getSizeZ()
+    {
+        return words.length == 0 ? 0 : words[0].length;
+    }
+
+    public int getSizeT()
+    {
+        return words.length;
+    }
+
+    /**
+     * @return true if the specified pixel is above (or equal to) the threshold
+     */
+    public boolean get(int x, int y, int z, int t)
+    {
+        int i = x + y * sizeX;
+        return (words[t][z][i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @param t
+     *            a frame index
+     * @param z
+     *            a slice index
+     * @return the words of the specified slice (not a copy)
+     */
+    public long[] getWords(int t, int z)
+    {
+        return words[t][z];
+    }
+
+    /**
+     * @return the number of pixels above (or equal to) the threshold
+     */
+    public long getNumberOfPoints()
+    {
+        long count = 0;
+
+        for (long[][] frame : words)
+            for (long[] slice : frame)
+                for (long word : slice)
+                    count += Long.bitCount(word);
+
+        return count;
+    }
+}
@@ -0,0 +1,37 @@
+package plugins.adufour.thresholder;
+
+import java.io.IOException;
+
+import icy.type.DataType;
+
+/**
+ * Source of image planes (i.e. a single channel of a (t, z) slice) read one at a time, so that
+ * data sets larger than the available memory can be processed plane by plane (see
+ * {@link StreamingThresholder})
+ */
+public interface PlaneSource
+{
+    int getSizeX();
+
+    int getSizeY();
+
+    int getSizeZ();
+
+    int getSizeT();
+
+    DataType getDataType();
+
+    /**
+     * Reads the specified plane. This method may be called concurrently for different planes
+     *
+     * @param t
+     *            the frame of the plane
+     * @param z
+     *            the slice of the plane
+     * @return the plane data, as a native array of {@link #getDataType()} holding
+     *         <code>sizeX * sizeY</code> values
+     * @throws IOException
+     *             if the plane cannot be read
+     */
+    Object readPlane(int t, int z) throws IOException;
+}
@@ -0,0 +1,32 @@
+package plugins.adufour.thresholder;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import icy.type.DataType;
+
+/**
+ * Destination of labeled planes written one at a time (see {@link StreamingThresholder})
+ */
+public interface PlaneStore extends Closeable
+{
+    /**
+     * @return the data type of the stored labels
+     */
+    DataType getDataType();
+
+    /**
+     * Writes the specified plane. This method may be called concurrently for different planes
+     *
+     * @param t
+     *            the frame of the plane
+     * @param z
+     *            the slice of the plane
+     * @param labels
+     *            the labels of the plane, as a native array of {@link #getDataType()} holding
+     *            <code>sizeX * sizeY</code> values
+     * @throws IOException
+     *             if the plane cannot be written
+     */
+    void writePlane(int t, int z, Object labels) throws IOException;
+}
@@ -0,0 +1,139 @@
+package plugins.adufour.thresholder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import icy.type.DataType;
+
+/**
+ * Plane source reading a single-channel raw file, where planes of
+ * <code>sizeX * sizeY</code> values are stored contiguously (without header), ordered by frame
+ * then slice, i.e. plane (t, z) starts at byte
+ * <code>offset + (t * sizeZ + z) * sizeX * sizeY * bytesPerValue</code>. Planes are only read
+ * when requested, hence the file may be larger than the available memory
+ */
+public class RawPlaneSource implements PlaneSource, Closeable
+{
+    private final RandomAccessFile file;
+
+    private final FileChannel      channel;
+
+    private final int              sizeX, sizeY, sizeZ, sizeT;
+
+    private final DataType         dataType;
+
+    private final ByteOrder        byteOrder;
+
+    private final long             offset;
+
+    /**
+     * Opens a raw file for reading
+     *
+     * @param file
+     *            the raw file
+     * @param sizeX
+     *            the width of each plane
+     * @param sizeY
+     *            the height of each plane
+     * @param sizeZ
+     *            the number of slices per frame
+     * @param sizeT
+     *            the number of frames
+     * @param dataType
+     *            the data type of the values
+     * @param byteOrder
+     *            the byte order of the values
+     * @param offset
+     *            the position of the first plane in the file (e.g. to skip a header)
+     * @throws IOException
+     *             if the file cannot be opened or is too small
+     */
+    public RawPlaneSource(File file, int sizeX, int sizeY, int sizeZ, int sizeT, DataType dataType, ByteOrder byteOrder, long offset)
+            throws IOException
+    {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeT = sizeT;
+        this.dataType = dataType;
+        this.byteOrder = byteOrder;
+        this.offset = offset;
+
+        if (getPlaneBytes() > Integer.MAX_VALUE) throw new IllegalArgumentException("Thresholder: planes larger than 2 GiB are not supported");
+
+        long expectedLength = offset + (long) sizeT * sizeZ * getPlaneBytes();
+
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+
+        if (channel.size() < expectedLength)
+        {
+            close();
+            throw new IOException(file + " holds " + channel.size() + " bytes (expected: " + expectedLength + ")");
+        }
+    }
+
+    private long getPlaneBytes()
+    {
+        return (long) sizeX * sizeY * RawPlanes.getBytesPerValue(dataType);
+    }
+
+    @Override
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+
+    @Override
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+
+    @Override
+    public int getSizeZ()
+    {
+        return sizeZ;
+    }
+
+    @Override
+    public int getSizeT()
+    {
+        return sizeT;
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return dataType;
+    }
+
+    @Override
+    public Object readPlane(int t, int z) throws IOException
+    {
+        // at most 2 GiB (checked at construction)
+        int planeBytes = (int) getPlaneBytes();
+
+        ByteBuffer buffer = ByteBuffer.allocate(planeBytes).order(byteOrder);
+
+        // positional reads do not modify the channel position, hence are thread-safe
+        RawPlanes.readFully(channel, buffer, offset + ((long) t * sizeZ + z) * planeBytes);
+        buffer.flip();
+
+        Object plane = RawPlanes.createArray(dataType, sizeX * sizeY);
+        RawPlanes.get(buffer, plane);
+
+        return plane;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
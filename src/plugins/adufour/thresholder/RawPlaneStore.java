@@ -0,0 +1,95 @@
+package plugins.adufour.thresholder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import icy.type.DataType;
+
+/**
+ * Plane store writing labels to a raw file in the layout read by {@link RawPlaneSource} (planes
+ * stored contiguously without header, ordered by frame then slice). Each plane is a fixed-size
+ * chunk of the file, written independently as soon as it is labeled
+ */
+public class RawPlaneStore implements PlaneStore
+{
+    private final RandomAccessFile file;
+
+    private final FileChannel      channel;
+
+    private final int              sizeX, sizeY, sizeZ;
+
+    private final DataType         dataType;
+
+    private final ByteOrder        byteOrder;
+
+    /**
+     * Creates (or overwrites) a raw label file
+     *
+     * @param file
+     *            the file to write
+     * @param sizeX
+     *            the width of each plane
+     * @param sizeY
+     *            the height of each plane
+     * @param sizeZ
+     *            the number of slices per frame
+     * @param sizeT
+     *            the number of frames
+     * @param dataType
+     *            the data type of the labels (see
+     *            {@link ThresholdKernels#getLabelDataType(int)})
+     * @param byteOrder
+     *            the byte order of the labels
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public RawPlaneStore(File file, int sizeX, int sizeY, int sizeZ, int sizeT, DataType dataType, ByteOrder byteOrder) throws IOException
+    {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.dataType = dataType;
+        this.byteOrder = byteOrder;
+
+        if (getPlaneBytes() > Integer.MAX_VALUE) throw new IllegalArgumentException("Thresholder: planes larger than 2 GiB are not supported");
+
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+
+        this.file.setLength((long) sizeT * sizeZ * getPlaneBytes());
+    }
+
+    private long getPlaneBytes()
+    {
+        return (long) sizeX * sizeY * RawPlanes.getBytesPerValue(dataType);
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return dataType;
+    }
+
+    @Override
+    public void writePlane(int t, int z, Object labels) throws IOException
+    {
+        // at most 2 GiB (checked at construction)
+        int planeBytes = (int) getPlaneBytes();
+
+        ByteBuffer buffer = ByteBuffer.allocate(planeBytes).order(byteOrder);
+        RawPlanes.put(labels, buffer);
+
+        // positional writes do not modify the channel position, hence are thread-safe
+        RawPlanes.writeFully(channel, buffer, ((long) t * sizeZ + z) * planeBytes);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
@@ -0,0 +1,124 @@
+package plugins.adufour.thresholder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import icy.type.DataType;
+
+/**
+ * Conversions between native arrays and raw plane data (values stored contiguously, without
+ * header, in the byte order of the given buffer)
+ */
+final class RawPlanes
+{
+    private RawPlanes()
+    {
+    }
+
+    /**
+     * @return the number of bytes of a value of the given data type
+     */
+    static int getBytesPerValue(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+            return 1;
+        case USHORT:
+        case SHORT:
+            return 2;
+        case UINT:
+        case INT:
+        case FLOAT:
+            return 4;
+        case ULONG:
+        case LONG:
+        case DOUBLE:
+            return 8;
+        default:
+            throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Creates a native array of the given data type
+     */
+    static Object createArray(DataType dataType, int length)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+            return new byte[length];
+        case USHORT:
+        case SHORT:
+            return new short[length];
+        case UINT:
+        case INT:
+            return new int[length];
+        case FLOAT:
+            return new float[length];
+        case ULONG:
+        case LONG:
+            return new long[length];
+        case DOUBLE:
+            return new double[length];
+        default:
+            throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+
+    /**
+     * Reads the values of the given buffer (from its position) into the given native array. The
+     * position of the buffer is not modified
+     */
+    static void get(ByteBuffer buffer, Object array)
+    {
+        if (array instanceof byte[]) buffer.duplicate().get((byte[]) array);
+        else if (array instanceof short[]) buffer.asShortBuffer().get((short[]) array);
+        else if (array instanceof int[]) buffer.asIntBuffer().get((int[]) array);
+        else if (array instanceof float[]) buffer.asFloatBuffer().get((float[]) array);
+        else if (array instanceof long[]) buffer.asLongBuffer().get((long[]) array);
+        else if (array instanceof double[]) buffer.asDoubleBuffer().get((double[]) array);
+        else throw new IllegalArgumentException("Not a native array: " + array);
+    }
+
+    /**
+     * Writes the values of the given native array into the given buffer (from its position). The
+     * position of the buffer is not modified
+     */
+    static void put(Object array, ByteBuffer buffer)
+    {
+        if (array instanceof byte[]) buffer.duplicate().put((byte[]) array);
+        else if (array instanceof short[]) buffer.asShortBuffer().put((short[]) array);
+        else if (array instanceof int[]) buffer.asIntBuffer().put((int[]) array);
+        else if (array instanceof float[]) buffer.asFloatBuffer().put((float[]) array);
+        else if (array instanceof long[]) buffer.asLongBuffer().put((long[]) array);
+        else if (array instanceof double[]) buffer.asDoubleBuffer().put((double[]) array);
+        else throw new IllegalArgumentException("Not a native array: " + array);
+    }
+
+    /**
+     * Fills the given buffer from the specified position of a file channel
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of file at position " + position);
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer at the specified position of a file channel
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
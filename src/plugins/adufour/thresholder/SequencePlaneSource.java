@@ -0,0 +1,67 @@
+package plugins.adufour.thresholder;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Plane source reading a channel of an in-memory sequence
+ */
+public class SequencePlaneSource implements PlaneSource
+{
+    private final Sequence sequence;
+
+    private final int      channel;
+
+    /**
+     * @param sequence
+     *            the sequence to read
+     * @param c
+     *            the channel to read
+     */
+    public SequencePlaneSource(Sequence sequence, int c)
+    {
+        if (c >= sequence.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+
+        this.sequence = sequence;
+        this.channel = c;
+    }
+
+    @Override
+    public int getSizeX()
+    {
+        return sequence.getSizeX();
+    }
+
+    @Override
+    public int getSizeY()
+    {
+        return sequence.getSizeY();
+    }
+
+    @Override
+    public int getSizeZ()
+    {
+        return sequence.getSizeZ();
+    }
+
+    @Override
+    public int getSizeT()
+    {
+        return sequence.getSizeT();
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return sequence.getDataType_();
+    }
+
+    /**
+     * @return the plane data (not a copy), or null if the plane is empty
+     */
+    @Override
+    public Object readPlane(int t, int z)
+    {
+        return sequence.getDataXY(t, z, channel);
+    }
+}
@@ -0,0 +1,403 @@
+package plugins.adufour.thresholder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class distributing independent slice (or tile) tasks over a pool of threads
+ */
+final class SliceExecutor
+{
+    /**
+     * Slices larger than this number of pixels are split into tiles that can be processed
+     * concurrently
+     */
+    static final int TILE_SIZE = 1 << 20;
+
+    /**
+     * pool shared by all the computations that do not need a dedicated pool (created on demand)
+     */
+    private static ExecutorService sharedPool;
+
+    private SliceExecutor()
+    {
+    }
+
+    /**
+     * @return the default number of threads (i.e. the number of available processors)
+     */
+    static int getDefaultThreadCount()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return a pool of daemon threads (one per available processor) shared by all callers. Tasks
+     *         run on this pool must not wait for other tasks of this pool (except through
+     *         {@link #invokeAll(List, int)}, which runs the pending tasks in the calling thread)
+     */
+    static synchronized ExecutorService getSharedPool()
+    {
+        if (sharedPool == null)
+        {
+            sharedPool = Executors.newFixedThreadPool(getDefaultThreadCount(), createThreadFactory("Thresholder"));
+        }
+
+        return sharedPool;
+    }
+
+    /**
+     * @param name
+     *            the prefix of the thread names
+     * @return a factory of daemon threads (which do not prevent the application from exiting)
+     */
+    static ThreadFactory createThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Splits a slice into contiguous ranges of at most {@link #TILE_SIZE} pixels
+     *
+     * @param length
+     *            the number of pixels in the slice
+     * @return the boundaries of each tile, i.e. tile #i covers pixels [bounds[i], bounds[i+1])
+     */
+    static int[] getTileBounds(int length)
+    {
+        int nbTiles = Math.max(1, (length + TILE_SIZE - 1) / TILE_SIZE);
+
+        int[] bounds = new int[nbTiles + 1];
+        for (int i = 1; i < nbTiles; i++)
+            bounds[i] = i * TILE_SIZE;
+        bounds[nbTiles] = length;
+
+        return bounds;
+    }
+
+    /**
+     * Runs the given tasks using the specified number of threads, and waits for all of them to
+     * complete. If only one thread is requested (or a single task is given), the tasks are run
+     * sequentially in the calling thread. Otherwise, the calling thread runs the tasks together with
+     * at most <code>nbThreads - 1</code> threads of the {@link #getSharedPool() shared pool} (no
+     * thread is created), so this method may also be called from a task of the shared pool. If one
+     * task fails, the tasks not started yet are skipped and the failure is rethrown
+     *
+     * @param tasks
+     *            the tasks to run
+     * @param nbThreads
+     *            the maximum number of threads to use
+     * @return the result of each task, in the same order as the tasks
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int nbThreads)
+    {
+        if (nbThreads <= 1 || tasks.size() <= 1)
+        {
+            List<T> results = new ArrayList<T>(tasks.size());
+
+            CancellationToken progress = CancellationToken.beginProgress();
+
+            try
+            {
+                for (Callable<T> task : tasks)
+                {
+                    CancellationToken.check();
+
+                    results.add(task.call());
+
+                    if (progress != null) progress.reportProgress(results.size(), tasks.size());
+                }
+            }
+            catch (RuntimeException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                if (progress != null) progress.endProgress();
+            }
+
+            return results;
+        }
+
+        CancellationToken progress = CancellationToken.beginProgress();
+
+        TaskQueue<T> queue = new TaskQueue<T>(tasks, progress);
+
+        int nbWorkers = Math.min(nbThreads, tasks.size()) - 1;
+        List<Future<Void>> workers = new ArrayList<Future<Void>>(nbWorkers);
+
+        try
+        {
+            ExecutorService pool = getSharedPool();
+
+            for (int i = 0; i < nbWorkers; i++)
+                workers.add(pool.submit(ThresholdMetrics.propagate(CancellationToken.propagate(queue))));
+
+            // the calling thread never waits for a worker that has not started (e.g. if the shared
+            // pool is busy with other computations), as it runs all the tasks left
+            queue.call();
+
+            return queue.getResults(CancellationToken.isCancellable());
+        }
+        finally
+        {
+            // the workers still running finish their current task
+            queue.stop();
+
+            for (Future<Void> worker : workers)
+                worker.cancel(false);
+
+            if (progress != null) progress.endProgress();
+        }
+    }
+
+    /**
+     * Runs the given tasks on the specified executor, and waits for all of them to complete. If
+     * one task fails, the remaining tasks are cancelled and the failure is rethrown
+     *
+     * @param tasks
+     *            the tasks to run
+     * @param executor
+     *            the executor to run the tasks on
+     * @return the result of each task, in the same order as the tasks
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, ExecutorService executor)
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        CancellationToken progress = CancellationToken.beginProgress();
+
+        // computations that must not be stopped half-way also ignore interruptions
+        boolean cancellable = CancellationToken.isCancellable();
+
+        try
+        {
+            for (Callable<T> task : tasks)
+                futures.add(executor.submit(ThresholdMetrics.propagate(CancellationToken.propagate(task))));
+
+            // tasks are gathered in order, which gives a good enough estimate of the progress
+            for (Future<T> future : futures)
+            {
+                results.add(cancellable ? future.get() : getUninterruptibly(future));
+
+                if (progress != null) progress.reportProgress(results.size(), tasks.size());
+
+                // the remaining tasks may have completed already
+                CancellationToken.check();
+            }
+
+            return results;
+        }
+        catch (InterruptedException e)
+        {
+            throw CancellationToken.interrupted(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        finally
+        {
+            // no-op for completed tasks
+            for (Future<T> future : futures)
+                future.cancel(true);
+
+            if (progress != null) progress.endProgress();
+        }
+    }
+
+    /**
+     * Tasks shared by the threads of a bounded invocation (see {@link #invokeAll(List, int)}): each
+     * thread runs the next pending task until none is left
+     */
+    private static final class TaskQueue<T> implements Callable<Void>
+    {
+        private final List<? extends Callable<T>> tasks;
+
+        private final Object[]                    results;
+
+        private final CancellationToken           progress;
+
+        /**
+         * index of the next task to run
+         */
+        private final AtomicInteger               next = new AtomicInteger();
+
+        /**
+         * true once a task has failed (or the invocation is over), to skip the remaining tasks
+         */
+        private volatile boolean                  stopped;
+
+        /**
+         * number of tasks completed (or skipped)
+         */
+        private int                               nbFinished;
+
+        /**
+         * number of tasks completed successfully
+         */
+        private int                               nbCompleted;
+
+        private Throwable                         failure;
+
+        TaskQueue(List<? extends Callable<T>> tasks, CancellationToken progress)
+        {
+            this.tasks = tasks;
+            this.results = new Object[tasks.size()];
+            this.progress = progress;
+        }
+
+        @Override
+        public Void call()
+        {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement())
+            {
+                boolean completed = false;
+                Throwable error = null;
+
+                if (!stopped)
+                {
+                    try
+                    {
+                        CancellationToken.check();
+
+                        results[i] = tasks.get(i).call();
+                        completed = true;
+                    }
+                    catch (Throwable t)
+                    {
+                        error = t;
+                    }
+                }
+
+                taskFinished(completed, error);
+            }
+
+            return null;
+        }
+
+        private synchronized void taskFinished(boolean completed, Throwable error)
+        {
+            if (error != null && failure == null)
+            {
+                failure = error;
+                stopped = true;
+            }
+
+            if (completed)
+            {
+                nbCompleted++;
+                if (progress != null) progress.reportProgress(nbCompleted, results.length);
+            }
+
+            if (++nbFinished == results.length) notifyAll();
+        }
+
+        void stop()
+        {
+            stopped = true;
+        }
+
+        /**
+         * Waits for all the tasks to complete
+         *
+         * @param interruptible
+         *            false to ignore interruptions (the interrupted status of the calling thread is
+         *            restored once the tasks have completed)
+         * @return the result of each task, in the same order as the tasks
+         */
+        @SuppressWarnings("unchecked")
+        synchronized List<T> getResults(boolean interruptible)
+        {
+            boolean interrupted = false;
+
+            try
+            {
+                while (nbFinished < results.length)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        if (interruptible) throw CancellationToken.interrupted(e);
+                        interrupted = true;
+                    }
+                }
+            }
+            finally
+            {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure != null) throw new RuntimeException(failure);
+
+            // the last tasks may have completed after the cancellation
+            CancellationToken.check();
+
+            List<T> list = new ArrayList<T>(results.length);
+            for (Object result : results)
+                list.add((T) result);
+
+            return list;
+        }
+    }
+
+    /**
+     * Waits for a task to complete, ignoring interruptions (the interrupted status of the calling
+     * thread is restored once the task has completed)
+     */
+    private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
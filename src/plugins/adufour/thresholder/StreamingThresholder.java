@@ -0,0 +1,326 @@
+package plugins.adufour.thresholder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import icy.type.DataType;
+
+/**
+ * Out-of-core thresholding pipeline, for data sets larger than the available memory. The data is
+ * read plane by plane from a {@link PlaneSource}, in three stages:
+ * <ol>
+ * <li>the histogram of the data is accumulated plane by plane (with an additional min/max pass for
+ * data types without exact histograms),</li>
+ * <li>the thresholds are computed from the histogram (K-means, Otsu or percentiles),</li>
+ * <li>each plane is read again, labeled and written to a {@link PlaneStore} (e.g. a file).</li>
+ * </ol>
+ * Planes are processed in parallel, by batches of at most <code>planesInFlight</code> planes, so
+ * that the peak memory is bounded to that number of input (and label) planes whatever the size of
+ * the data
+ */
+public class StreamingThresholder
+{
+    /**
+     * Default maximum number of planes held in memory at once
+     */
+    public static final int   DEFAULT_PLANES_IN_FLIGHT = 8;
+
+    private final PlaneSource source;
+
+    private final int         planesInFlight;
+
+    private final int         nbThreads;
+
+    /**
+     * @param source
+     *            the planes to threshold
+     * @param planesInFlight
+     *            the maximum number of planes held in memory at once
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     */
+    public StreamingThresholder(PlaneSource source, int planesInFlight, int nbThreads)
+    {
+        if (planesInFlight < 1) throw new IllegalArgumentException("Thresholder: at least one plane must be processed at once");
+
+        this.source = source;
+        this.planesInFlight = planesInFlight;
+        this.nbThreads = Math.max(1, Math.min(nbThreads, planesInFlight));
+    }
+
+    /**
+     * Computes the histogram of the source planes
+     *
+     * @param t
+     *            the frame to compute the histogram of, or -1 to compute it over all frames
+     * @param nbBins
+     *            the number of bins (only used if the data type does not allow an exact
+     *            histogram)
+     * @return the histogram
+     * @throws IOException
+     *             if a plane cannot be read
+     */
+    public Histogram computeHistogram(int t, int nbBins) throws IOException
+    {
+        final DataType dataType = source.getDataType();
+        final int length = source.getSizeX() * source.getSizeY();
+
+        List<int[]> planes = getPlanes(t < 0 ? 0 : t, t < 0 ? source.getSizeT() : t + 1);
+
+        final Histogram histogram;
+
+        if (Histogram.isExactType(dataType))
+        {
+            histogram = new Histogram(dataType);
+        }
+        else
+        {
+            // first pass: data bounds
+            double[] minmax = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+            for (int first = 0; first < planes.size(); first += planesInFlight)
+            {
+                List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+
+                for (final int[] plane : planes.subList(first, Math.min(planes.size(), first + planesInFlight)))
+                {
+                    tasks.add(new Callable<double[]>()
+                    {
+                        @Override
+                        public double[] call() throws IOException
+                        {
+                            double[] planeBounds = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+                            Object data = source.readPlane(plane[0], plane[1]);
+                            if (data != null) Histogram.updateBounds(data, dataType, 0, length, planeBounds);
+
+                            return planeBounds;
+                        }
+                    });
+                }
+
+                for (double[] planeBounds : invoke(tasks))
+                {
+                    minmax[0] = Math.min(minmax[0], planeBounds[0]);
+                    minmax[1] = Math.max(minmax[1], planeBounds[1]);
+                }
+            }
+
+            histogram = new Histogram(minmax[0], minmax[1], nbBins);
+        }
+
+        final double binMin = histogram.isExact() ? 0 : histogram.getMin();
+        final double binMax = histogram.isExact() ? 0 : histogram.getMax();
+        final int bins = nbBins;
+
+        for (int first = 0; first < planes.size(); first += planesInFlight)
+        {
+            List<Callable<Histogram>> tasks = new ArrayList<Callable<Histogram>>();
+
+            for (final int[] plane : planes.subList(first, Math.min(planes.size(), first + planesInFlight)))
+            {
+                tasks.add(new Callable<Histogram>()
+                {
+                    @Override
+                    public Histogram call() throws IOException
+                    {
+                        Histogram planeHistogram = Histogram.isExactType(dataType) ? new Histogram(dataType) : new Histogram(binMin, binMax, bins);
+
+                        Object data = source.readPlane(plane[0], plane[1]);
+                        if (data != null) planeHistogram.add(data, dataType, 0, length);
+
+                        return planeHistogram;
+                    }
+                });
+            }
+
+            for (Histogram planeHistogram : invoke(tasks))
+                histogram.add(planeHistogram);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Computes K-means thresholds (see {@link KMeans#computeKMeansThresholds(Histogram, int, int)})
+     *
+     * @param timeDependent
+     *            true to compute the thresholds of each frame independently
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return an array of thresholds of size [sizeT][nbClasses-1]
+     * @throws IOException
+     *             if a plane cannot be read
+     */
+    public double[][] computeKMeansThresholds(boolean timeDependent, int nbClasses, int nbBins) throws IOException
+    {
+        double[][] thresholds = new double[source.getSizeT()][];
+
+        for (int t = 0; t < thresholds.length; t++)
+        {
+            if (!timeDependent && t > 0) thresholds[t] = thresholds[0];
+            else thresholds[t] = KMeans.computeKMeansThresholds(computeHistogram(timeDependent ? t : -1, nbBins), nbClasses, nbBins);
+        }
+
+        return thresholds;
+    }
+
+    /**
+     * Computes multi-level Otsu thresholds (see
+     * {@link MultiOtsu#computeOtsuThresholds(Histogram, int, int)})
+     *
+     * @param timeDependent
+     *            true to compute the thresholds of each frame independently
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return an array of thresholds of size [sizeT][nbClasses-1]
+     * @throws IOException
+     *             if a plane cannot be read
+     */
+    public double[][] computeOtsuThresholds(boolean timeDependent, int nbClasses, int nbBins) throws IOException
+    {
+        double[][] thresholds = new double[source.getSizeT()][];
+
+        for (int t = 0; t < thresholds.length; t++)
+        {
+            if (!timeDependent && t > 0) thresholds[t] = thresholds[0];
+            else thresholds[t] = MultiOtsu.computeOtsuThresholds(computeHistogram(timeDependent ? t : -1, nbBins), nbClasses, nbBins);
+        }
+
+        return thresholds;
+    }
+
+    /**
+     * Computes percentile thresholds (see {@link Histogram#getPercentiles(double...)})
+     *
+     * @param timeDependent
+     *            true to compute the thresholds of each frame independently
+     * @param percentiles
+     *            the percentiles to compute (between 0 and 100)
+     * @return an array of thresholds of size [sizeT][percentiles.length]
+     * @throws IOException
+     *             if a plane cannot be read
+     */
+    public double[][] computePercentileThresholds(boolean timeDependent, double... percentiles) throws IOException
+    {
+        double[][] thresholds = new double[source.getSizeT()][];
+
+        for (int t = 0; t < thresholds.length; t++)
+        {
+            if (!timeDependent && t > 0) thresholds[t] = thresholds[0];
+            else thresholds[t] = computeHistogram(timeDependent ? t : -1, Histogram.DEFAULT_QUANTILE_BINS).getPercentiles(percentiles);
+        }
+
+        return thresholds;
+    }
+
+    /**
+     * @param thresholdsT
+     *            a list of thresholds for each frame
+     * @return the smallest data type able to hold the labels produced by the given thresholds (i.e.
+     *         the data type of the store given to {@link #label(double[][], PlaneStore)})
+     */
+    public static DataType getLabelDataType(double[][] thresholdsT)
+    {
+        int maxClass = 0;
+
+        for (double[] thresholds : thresholdsT)
+            if (thresholds != null) maxClass = Math.max(maxClass, thresholds.length);
+
+        return ThresholdKernels.getLabelDataType(maxClass);
+    }
+
+    /**
+     * Labels every plane of the source and writes it to the given store
+     *
+     * @param thresholdsT
+     *            a list of thresholds for each frame
+     * @param output
+     *            the store receiving the labeled planes
+     * @throws IOException
+     *             if a plane cannot be read or written
+     */
+    public void label(double[][] thresholdsT, final PlaneStore output) throws IOException
+    {
+        final DataType dataType = source.getDataType();
+        final DataType labelType = output.getDataType();
+        final int length = source.getSizeX() * source.getSizeY();
+
+        // one lookup table per frame (8/16-bit data with many classes)
+        final short[][] lookupTables = new short[source.getSizeT()][];
+
+        for (int t = 0; t < source.getSizeT(); t++)
+        {
+            if (thresholdsT[t] == null || thresholdsT[t].length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+
+            if (ThresholdKernels.isLookupTableWorthwhile(dataType, thresholdsT[t], (long) length * source.getSizeZ()))
+                lookupTables[t] = ThresholdKernels.createLookupTable(dataType, thresholdsT[t]);
+        }
+
+        final double[][] thresholds = thresholdsT;
+
+        List<int[]> planes = getPlanes(0, source.getSizeT());
+
+        for (int first = 0; first < planes.size(); first += planesInFlight)
+        {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+            for (final int[] plane : planes.subList(first, Math.min(planes.size(), first + planesInFlight)))
+            {
+                tasks.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call() throws IOException
+                    {
+                        int t = plane[0], z = plane[1];
+
+                        Object labels = RawPlanes.createArray(labelType, length);
+                        ThresholdKernels.label(source.readPlane(t, z), dataType, thresholds[t], lookupTables[t], labels, labelType, 0, length, 0);
+                        output.writePlane(t, z, labels);
+
+                        return null;
+                    }
+                });
+            }
+
+            invoke(tasks);
+        }
+    }
+
+    /**
+     * @return the (t, z) coordinates of all the planes of the given frames
+     */
+    private List<int[]> getPlanes(int firstT, int lastT)
+    {
+        List<int[]> planes = new ArrayList<int[]>();
+
+        for (int t = firstT; t < lastT; t++)
+            for (int z = 0; z < source.getSizeZ(); z++)
+                planes.add(new int[] { t, z });
+
+        return planes;
+    }
+
+    /**
+     * Runs a batch of plane tasks (see {@link SliceExecutor#invokeAll(List, int)}), rethrowing the
+     * I/O errors
+     */
+    private <T> List<T> invoke(List<Callable<T>> tasks) throws IOException
+    {
+        try
+        {
+            return SliceExecutor.invokeAll(tasks, nbThreads);
+        }
+        catch (RuntimeException e)
+        {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+}
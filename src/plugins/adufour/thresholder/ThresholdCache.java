@@ -0,0 +1,385 @@
+package plugins.adufour.thresholder;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
+
+/**
+ * Bounded cache of the histograms and thresholds computed on sequences, so that thresholding the
+ * same data repeatedly (e.g. in a protocol loop, or when switching between output types) does not
+ * read the data again.<br>
+ * Entries are keyed by the sequence (by identity), a modification stamp of the sequence data,
+ * the channel, the frame, the number of bins and the number of classes (or the percentiles). Each
+ * cached sequence is listened to, and its entries are dropped as soon as its data (or data type)
+ * changes, or when it is closed. The cache holds at most {@link #MAX_ENTRIES} entries (the least recently used ones
+ * are dropped first), and values are softly referenced so that they are reclaimed under memory
+ * pressure
+ */
+public final class ThresholdCache
+{
+    /**
+     * Maximum number of cached histograms and thresholds
+     */
+    public static final int MAX_ENTRIES = 256;
+
+    private enum Kind
+    {
+        HISTOGRAM, K_MEANS, OTSU, PERCENTILES
+    }
+
+    /**
+     * Tracks the modifications of a cached sequence
+     */
+    private static final class Tracker implements SequenceListener
+    {
+        /**
+         * incremented each time the sequence data changes
+         */
+        int stamp;
+
+        @Override
+        public void sequenceChanged(SequenceEvent event)
+        {
+            SequenceEventSourceType type = event.getSourceType();
+
+            if (type == SequenceEventSourceType.SEQUENCE_DATA || type == SequenceEventSourceType.SEQUENCE_TYPE) invalidate(this);
+        }
+
+        @Override
+        public void sequenceClosed(Sequence sequence)
+        {
+            synchronized (ThresholdCache.class)
+            {
+                trackers.remove(sequence);
+            }
+
+            sequence.removeListener(this);
+            invalidate(this);
+        }
+    }
+
+    private static final class Key
+    {
+        final Tracker  tracker;
+        final int      stamp, c, t, nbBins, nbClasses;
+        final Kind     kind;
+        final double[] percentiles;
+
+        Key(Tracker tracker, int stamp, Kind kind, int c, int t, int nbBins, int nbClasses)
+        {
+            this(tracker, stamp, kind, c, t, nbBins, nbClasses, null);
+        }
+
+        Key(Tracker tracker, int stamp, Kind kind, int c, int t, int nbBins, int nbClasses, double[] percentiles)
+        {
+            this.tracker = tracker;
+            this.stamp = stamp;
+            this.kind = kind;
+            this.c = c;
+            this.t = t;
+            this.nbBins = nbBins;
+            this.nbClasses = nbClasses;
+            this.percentiles = percentiles == null ? null : percentiles.clone();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) return false;
+
+            Key key = (Key) obj;
+            return tracker == key.tracker && stamp == key.stamp && kind == key.kind && c == key.c && t == key.t && nbBins == key.nbBins
+                    && nbClasses == key.nbClasses && Arrays.equals(percentiles, key.percentiles);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = System.identityHashCode(tracker);
+            hash = 31 * hash + stamp;
+            hash = 31 * hash + kind.ordinal();
+            hash = 31 * hash + c;
+            hash = 31 * hash + t;
+            hash = 31 * hash + nbBins;
+            hash = 31 * hash + nbClasses;
+            return 31 * hash + Arrays.hashCode(percentiles);
+        }
+    }
+
+    /**
+     * tracker of each cached sequence (weakly referenced, sequences do not override equals())
+     */
+    private static final WeakHashMap<Sequence, Tracker>            trackers = new WeakHashMap<Sequence, Tracker>();
+
+    private static final LinkedHashMap<Key, SoftReference<Object>> entries  = new LinkedHashMap<Key, SoftReference<Object>>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, SoftReference<Object>> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ThresholdCache()
+    {
+    }
+
+    /**
+     * Returns the histogram of the specified channel of a sequence (see
+     * {@link Histogram#compute(Sequence, int, int, int)}), computing it only if it is not cached.
+     * The returned histogram is shared, and must not be modified
+     *
+     * @param sequence
+     *            the input sequence
+     * @param c
+     *            the channel to compute the histogram of
+     * @param t
+     *            the frame to compute the histogram of, or -1 to compute it over all frames
+     * @param nbBins
+     *            the number of bins (only used if the data type does not allow an exact
+     *            histogram)
+     * @return the histogram
+     */
+    public static Histogram getHistogram(Sequence sequence, int c, int t, int nbBins)
+    {
+        // exact histograms do not depend on the number of bins
+        if (Histogram.isExactType(sequence.getDataType_())) nbBins = 0;
+
+        Tracker tracker = getTracker(sequence);
+        int stamp = getStamp(tracker);
+
+        Key key = new Key(tracker, stamp, Kind.HISTOGRAM, c, t, nbBins, 0);
+
+        Histogram histogram = (Histogram) get(key);
+
+        if (histogram == null)
+        {
+            histogram = Histogram.compute(sequence, c, t, nbBins == 0 ? Histogram.DEFAULT_QUANTILE_BINS : nbBins);
+            put(key, histogram);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Returns the K-means thresholds of the specified channel of a sequence (see
+     * {@link KMeans#computeKMeansThresholds(Sequence, int, int, int, int)}), computing them only if
+     * they are not cached
+     *
+     * @param sequence
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the thresholds
+     * @param t
+     *            the frame on which to compute the thresholds, or -1 to use all frames
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return an array of thresholds of size [nbClasses-1]
+     */
+    public static double[] getKMeansThresholds(Sequence sequence, int c, int t, int nbClasses, int nbBins)
+    {
+        return getThresholds(Kind.K_MEANS, sequence, c, t, nbClasses, nbBins);
+    }
+
+    /**
+     * Returns the multi-level Otsu thresholds of the specified channel of a sequence (see
+     * {@link MultiOtsu#computeOtsuThresholds(Sequence, int, int, int, int)}), computing them only
+     * if they are not cached
+     *
+     * @param sequence
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the thresholds
+     * @param t
+     *            the frame on which to compute the thresholds, or -1 to use all frames
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return an array of thresholds of size [nbClasses-1]
+     */
+    public static double[] getOtsuThresholds(Sequence sequence, int c, int t, int nbClasses, int nbBins)
+    {
+        return getThresholds(Kind.OTSU, sequence, c, t, nbClasses, nbBins);
+    }
+
+    /**
+     * Returns the K-means thresholds of a frame (see
+     * {@link #getKMeansThresholds(Sequence, int, int, int, int)}). If neither the thresholds nor
+     * the histogram of the frame are cached, the histogram is computed into the given buffer (and
+     * is not cached)
+     *
+     * @param buffer
+     *            a histogram buffer of the calling thread (see
+     *            {@link FrameThresholds#createHistogramBuffer(Sequence)}), or null
+     */
+    static double[] getKMeansThresholds(Sequence sequence, int c, int t, int nbClasses, int nbBins, Histogram buffer)
+    {
+        return getThresholds(Kind.K_MEANS, sequence, c, t, nbClasses, nbBins, null, buffer);
+    }
+
+    /**
+     * Returns the multi-level Otsu thresholds of a frame (see
+     * {@link #getOtsuThresholds(Sequence, int, int, int, int)}). If neither the thresholds nor the
+     * histogram of the frame are cached, the histogram is computed into the given buffer (and is
+     * not cached)
+     *
+     * @param buffer
+     *            a histogram buffer of the calling thread (see
+     *            {@link FrameThresholds#createHistogramBuffer(Sequence)}), or null
+     */
+    static double[] getOtsuThresholds(Sequence sequence, int c, int t, int nbClasses, int nbBins, Histogram buffer)
+    {
+        return getThresholds(Kind.OTSU, sequence, c, t, nbClasses, nbBins, null, buffer);
+    }
+
+    /**
+     * Returns the intensity percentiles of a frame (see
+     * {@link Histogram#getPercentiles(double...)}), computing them only if they are not cached. If
+     * the histogram of the frame is not cached either, it is computed into the given buffer (and is
+     * not cached)
+     *
+     * @param buffer
+     *            a histogram buffer of the calling thread (see
+     *            {@link FrameThresholds#createHistogramBuffer(Sequence)}), or null
+     */
+    static double[] getPercentileThresholds(Sequence sequence, int c, int t, double[] percentiles, Histogram buffer)
+    {
+        return getThresholds(Kind.PERCENTILES, sequence, c, t, 0, Histogram.DEFAULT_QUANTILE_BINS, percentiles, buffer);
+    }
+
+    private static double[] getThresholds(Kind kind, Sequence sequence, int c, int t, int nbClasses, int nbBins)
+    {
+        return getThresholds(kind, sequence, c, t, nbClasses, nbBins, null, null);
+    }
+
+    private static double[] getThresholds(Kind kind, Sequence sequence, int c, int t, int nbClasses, int nbBins, double[] percentiles,
+            Histogram buffer)
+    {
+        Tracker tracker = getTracker(sequence);
+        int stamp = getStamp(tracker);
+
+        Key key = new Key(tracker, stamp, kind, c, t, nbBins, nbClasses, percentiles);
+
+        double[] thresholds = (double[]) get(key);
+
+        if (thresholds == null)
+        {
+            Histogram histogram;
+
+            if (buffer == null) histogram = getHistogram(sequence, c, t, nbBins);
+            else
+            {
+                // reuse the cached histogram if any (buffers are only used for exact histograms, which
+                // are cached without bins), otherwise fill the buffer (reused afterwards)
+                histogram = (Histogram) get(new Key(tracker, stamp, Kind.HISTOGRAM, c, t, 0, 0));
+                if (histogram == null) histogram = FrameThresholds.computeHistogram(sequence, c, t, nbBins, buffer);
+            }
+
+            if (kind == Kind.K_MEANS) thresholds = KMeans.computeKMeansThresholds(histogram, nbClasses, nbBins);
+            else if (kind == Kind.OTSU) thresholds = MultiOtsu.computeOtsuThresholds(histogram, nbClasses, nbBins);
+            else thresholds = histogram.getPercentiles(percentiles);
+
+            put(key, thresholds);
+        }
+
+        return thresholds.clone();
+    }
+
+    /**
+     * Drops the cached histograms and thresholds of the given sequence
+     *
+     * @param sequence
+     *            a sequence
+     */
+    public static void invalidate(Sequence sequence)
+    {
+        Tracker tracker;
+
+        synchronized (ThresholdCache.class)
+        {
+            tracker = trackers.get(sequence);
+        }
+
+        if (tracker != null) invalidate(tracker);
+    }
+
+    /**
+     * Drops all the cached histograms and thresholds
+     */
+    public static synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    private static synchronized void invalidate(Tracker tracker)
+    {
+        // entries computed from the previous data can no longer be reached
+        tracker.stamp++;
+
+        for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();)
+            if (it.next().tracker == tracker) it.remove();
+    }
+
+    private static Tracker getTracker(Sequence sequence)
+    {
+        Tracker tracker;
+        boolean created = false;
+
+        synchronized (ThresholdCache.class)
+        {
+            tracker = trackers.get(sequence);
+
+            if (tracker == null)
+            {
+                tracker = new Tracker();
+                trackers.put(sequence, tracker);
+                created = true;
+            }
+        }
+
+        // registered outside the lock (listeners may be notified while registering)
+        if (created) sequence.addListener(tracker);
+
+        return tracker;
+    }
+
+    private static synchronized int getStamp(Tracker tracker)
+    {
+        return tracker.stamp;
+    }
+
+    private static synchronized Object get(Key key)
+    {
+        SoftReference<Object> reference = entries.get(key);
+
+        if (reference == null) return null;
+
+        Object value = reference.get();
+
+        // reclaimed under memory pressure
+        if (value == null) entries.remove(key);
+
+        return value;
+    }
+
+    private static synchronized void put(Key key, Object value)
+    {
+        // do not cache values computed while the data was modified
+        if (key.stamp != key.tracker.stamp) return;
+
+        entries.put(key, new SoftReference<Object>(value));
+    }
+}
@@ -0,0 +1,79 @@
+package plugins.adufour.thresholder;
+
+/**
+ * Thresholds estimated on a sample of the data (see {@link ThresholdSampler}), along with an
+ * estimate of their error
+ */
+public class ThresholdEstimate
+{
+    private final double[] thresholds;
+
+    private final double[] errors;
+
+    private final long     sampledPixels;
+
+    private final long     totalPixels;
+
+    ThresholdEstimate(double[] thresholds, double[] errors, long sampledPixels, long totalPixels)
+    {
+        this.thresholds = thresholds;
+        this.errors = errors;
+        this.sampledPixels = sampledPixels;
+        this.totalPixels = totalPixels;
+    }
+
+    /**
+     * @return the estimated thresholds
+     */
+    public double[] getThresholds()
+    {
+        return thresholds.clone();
+    }
+
+    /**
+     * @return the estimated (absolute) error of each threshold, in intensity units (0 if the
+     *         thresholds were computed on all the data)
+     */
+    public double[] getErrors()
+    {
+        return errors.clone();
+    }
+
+    /**
+     * @return the largest estimated error of the thresholds
+     */
+    public double getMaxError()
+    {
+        double max = 0;
+
+        for (double error : errors)
+            max = Math.max(max, error);
+
+        return max;
+    }
+
+    /**
+     * @return the number of pixels the thresholds were computed on
+     */
+    public long getSampledPixels()
+    {
+        return sampledPixels;
+    }
+
+    /**
+     * @return the fraction of the data the thresholds were computed on (1 if the thresholds are
+     *         exact)
+     */
+    public double getSampledFraction()
+    {
+        return totalPixels == 0 ? 1 : (double) sampledPixels / totalPixels;
+    }
+
+    /**
+     * @return true if the thresholds were computed on all the data
+     */
+    public boolean isExact()
+    {
+        return sampledPixels == totalPixels;
+    }
+}
@@ -0,0 +1,769 @@
+package plugins.adufour.thresholder;
+
+import java.util.Arrays;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Type-specialized labeling kernels. Each kernel reads the native input array directly and writes
+ * class labels straight into a primitive output array, avoiding the per-pixel data type dispatch of
+ * {@link Array1DUtil#getValue(Object, int, DataType)} and
+ * {@link Array1DUtil#setValue(Object, int, DataType, double)}.<br>
+ * Labels follow the convention of {@link Thresholder}: 0 for the background (below the first
+ * threshold), and <code>k+1</code> for values above (or equal to) the k-th threshold.
+ */
+public final class ThresholdKernels
+{
+    /**
+     * Minimum number of (sorted) thresholds above which pixels are classified by binary search
+     * rather than by scanning the thresholds from the highest to the lowest
+     */
+    static final int BINARY_SEARCH_MIN_THRESHOLDS = 8;
+
+    private ThresholdKernels()
+    {
+    }
+
+    /**
+     * @param nbThresholds
+     *            the number of thresholds
+     * @return the smallest unsigned data type able to hold the labels produced by the given number
+     *         of thresholds
+     */
+    public static DataType getLabelDataType(int nbThresholds)
+    {
+        if (nbThresholds <= 0xFF) return DataType.UBYTE;
+        if (nbThresholds <= 0xFFFF) return DataType.USHORT;
+        return DataType.UINT;
+    }
+
+    /**
+     * Computes the class of the given value (reference implementation used by all kernels)
+     *
+     * @param val
+     *            the value to classify
+     * @param thresholds
+     *            the list of thresholds
+     * @return the class of the value (0 for the background)
+     */
+    public static int classOf(double val, double[] thresholds)
+    {
+        // background
+        if (val < thresholds[0]) return 0;
+
+        // browse thresholds from highest to lowest (above 1 to save one test)
+        // assign the first positive match
+        for (int thr = thresholds.length - 1; thr > 0; thr--)
+            if (val >= thresholds[thr]) return thr + 1;
+
+        // last possible case: class 1
+        return 1;
+    }
+
+    /**
+     * Computes the class of the given value by binary search over thresholds sorted in ascending
+     * order. The search has no data-dependent branch (the comparisons only select the next search
+     * position), hence its cost is log2(thresholds.length) whatever the value. The result is that
+     * of {@link #classOf(double, double[])}, including for NaN values (class 1)
+     *
+     * @param val
+     *            the value to classify
+     * @param thresholds
+     *            the list of thresholds, sorted in ascending order (see {@link #isSorted(double[])})
+     * @return the class of the value (0 for the background)
+     */
+    public static int classOfSorted(double val, double[] thresholds)
+    {
+        // find the number of thresholds lower than or equal to the value
+        int base = 0;
+        int n = thresholds.length;
+
+        while (n > 1)
+        {
+            int half = n >>> 1;
+            base = thresholds[base + half - 1] <= val ? base + half : base;
+            n -= half;
+        }
+
+        int count = base + (thresholds[base] <= val ? 1 : 0);
+
+        // NaN values are never below the first threshold (class 1)
+        return count == 0 && !(val < thresholds[0]) ? 1 : count;
+    }
+
+    /**
+     * @param thresholds
+     *            a list of thresholds
+     * @return true if the thresholds are sorted in ascending order (and are not NaN)
+     */
+    public static boolean isSorted(double[] thresholds)
+    {
+        for (int i = 1; i < thresholds.length; i++)
+            if (!(thresholds[i - 1] <= thresholds[i])) return false;
+
+        return thresholds.length == 0 || !Double.isNaN(thresholds[0]);
+    }
+
+    /**
+     * @return true if pixels are faster to classify with {@link #classOfSorted(double, double[])}
+     *         than with {@link #classOf(double, double[])}, i.e. if there are many sorted
+     *         thresholds
+     */
+    private static boolean useBinarySearch(double[] thresholds)
+    {
+        return thresholds.length >= BINARY_SEARCH_MIN_THRESHOLDS && isSorted(thresholds);
+    }
+
+    private static int classify(double val, double[] thresholds, boolean sorted)
+    {
+        return sorted ? classOfSorted(val, thresholds) : classOf(val, thresholds);
+    }
+
+    /**
+     * Creates a lookup table holding the class of every possible value of an 8-bit or 16-bit data
+     * type, so that each pixel is labeled with a single array access whatever the number of
+     * classes. The table holds the exact result of {@link #classOf(double, double[])}
+     *
+     * @param dataType
+     *            the data type of the values to label
+     * @param thresholds
+     *            the list of thresholds
+     * @return the lookup table (see {@link #getLookupTableOffset(DataType)} to index it), or
+     *         <code>null</code> if the data type is not 8-bit or 16-bit or if the labels do not
+     *         fit in 16 bits
+     */
+    public static short[] createLookupTable(DataType dataType, double[] thresholds)
+    {
+        if (!Histogram.isExactType(dataType) || thresholds.length > 0xFFFF) return null;
+
+        int offset = getLookupTableOffset(dataType);
+        short[] table = new short[dataType.getSize() == 1 ? 256 : 65536];
+
+        for (int i = 0; i < table.length; i++)
+            table[i] = (short) classOf(i + offset, thresholds);
+
+        return table;
+    }
+
+    /**
+     * @param dataType
+     *            an 8-bit or 16-bit data type
+     * @return the value stored at index 0 of a lookup table for the given data type, i.e. the
+     *         class of a value v is found at index <code>v - offset</code>
+     */
+    public static int getLookupTableOffset(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case BYTE:
+            return Byte.MIN_VALUE;
+        case SHORT:
+            return Short.MIN_VALUE;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Indicates whether labeling the given number of pixels with a lookup table is faster than
+     * comparing each pixel to the thresholds, i.e. when there are at least 3 classes (the 2-class
+     * case needs a single comparison) and enough pixels to amortize the table creation
+     *
+     * @param dataType
+     *            the data type of the values to label
+     * @param thresholds
+     *            the list of thresholds
+     * @param nbPixels
+     *            the number of pixels labeled with the same thresholds
+     * @return true if a lookup table should be used
+     */
+    public static boolean isLookupTableWorthwhile(DataType dataType, double[] thresholds, long nbPixels)
+    {
+        if (!Histogram.isExactType(dataType) || thresholds.length < 2 || thresholds.length > 0xFFFF) return false;
+
+        return nbPixels >= (dataType.getSize() == 1 ? 256 : 65536);
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into the output array. Both
+     * arrays must be of the given data type (the output may be the input array itself)
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param out
+     *            the output array
+     * @param dataType
+     *            the data type of both arrays
+     * @param thresholds
+     *            the list of thresholds
+     * @param from
+     *            the first pixel to label (inclusive)
+     * @param to
+     *            the last pixel to label (exclusive)
+     */
+    public static void label(Object in, Object out, DataType dataType, double[] thresholds, int from, int to)
+    {
+        label(in, out, dataType, thresholds, null, from, to);
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into the output array, using
+     * the given lookup table for 8-bit and 16-bit data. Both arrays must be of the given data type
+     * (the output may be the input array itself)
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param out
+     *            the output array
+     * @param dataType
+     *            the data type of both arrays
+     * @param thresholds
+     *            the list of thresholds
+     * @param lookupTable
+     *            the lookup table created by {@link #createLookupTable(DataType, double[])} for
+     *            these thresholds, or <code>null</code> to compare each pixel to the thresholds
+     * @param from
+     *            the first pixel to label (inclusive)
+     * @param to
+     *            the last pixel to label (exclusive)
+     */
+    public static void label(Object in, Object out, DataType dataType, double[] thresholds, short[] lookupTable, int from, int to)
+    {
+        if (in == null)
+        {
+            fill(out, dataType, classOf(0, thresholds), from, to);
+            return;
+        }
+
+        switch (dataType)
+        {
+        case UBYTE:
+            label((byte[]) in, 0xFF, (byte[]) out, thresholds, lookupTable, from, to);
+            break;
+        case BYTE:
+            label((byte[]) in, -1, (byte[]) out, thresholds, lookupTable, from, to);
+            break;
+        case USHORT:
+            label((short[]) in, 0xFFFF, (short[]) out, thresholds, lookupTable, from, to);
+            break;
+        case SHORT:
+            label((short[]) in, -1, (short[]) out, thresholds, lookupTable, from, to);
+            break;
+        case UINT:
+            labelUnsigned((int[]) in, (int[]) out, thresholds, from, to);
+            break;
+        case INT:
+            label((int[]) in, (int[]) out, thresholds, from, to);
+            break;
+        case FLOAT:
+            label((float[]) in, (float[]) out, thresholds, from, to);
+            break;
+        case DOUBLE:
+            label((double[]) in, (double[]) out, thresholds, from, to);
+            break;
+        default:
+            for (int i = from; i < to; i++)
+                Array1DUtil.setValue(out, i, dataType, classOf(Array1DUtil.getValue(in, i, dataType), thresholds));
+        }
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into an output array of a
+     * possibly different data type (e.g. a compact 8-bit class map)
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param inType
+     *            the data type of the input array
+     * @param thresholds
+     *            the list of thresholds
+     * @param out
+     *            the output array (must be large enough to hold <code>thresholds.length</code>)
+     * @param outType
+     *            the data type of the output array
+     * @param from
+     *            the first pixel to label (inclusive)
+     * @param to
+     *            the last pixel to label (exclusive)
+     */
+    public static void label(Object in, DataType inType, double[] thresholds, Object out, DataType outType, int from, int to)
+    {
+        label(in, inType, thresholds, out, outType, from, to, from);
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into an output array of a
+     * possibly different data type, starting at the given output position (e.g. to label a single
+     * image row into a row buffer)
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param inType
+     *            the data type of the input array
+     * @param thresholds
+     *            the list of thresholds
+     * @param out
+     *            the output array (must be large enough to hold <code>thresholds.length</code>)
+     * @param outType
+     *            the data type of the output array
+     * @param from
+     *            the first pixel to label (inclusive)
+     * @param to
+     *            the last pixel to label (exclusive)
+     * @param outFrom
+     *            the position in the output array where the label of the first pixel is written
+     */
+    public static void label(Object in, DataType inType, double[] thresholds, Object out, DataType outType, int from, int to, int outFrom)
+    {
+        label(in, inType, thresholds, null, out, outType, from, to, outFrom);
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into an output array of a
+     * possibly different data type, starting at the given output position, and using the given
+     * lookup table for 8-bit and 16-bit data
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param inType
+     *            the data type of the input array
+     * @param thresholds
+     *            the list of thresholds
+     * @param lookupTable
+     *            the lookup table created by {@link #createLookupTable(DataType, double[])} for
+     *            these thresholds, or <code>null</code> to compare each pixel to the thresholds
+     * @param out
+     *            the output array (must be large enough to hold <code>thresholds.length</code>)
+     * @param outType
+     *            the data type of the output array
+     * @param from
+     *            the first pixel to label (inclusive)
+     * @param to
+     *            the last pixel to label (exclusive)
+     * @param outFrom
+     *            the position in the output array where the label of the first pixel is written
+     */
+    public static void label(Object in, DataType inType, double[] thresholds, short[] lookupTable, Object out, DataType outType, int from, int to,
+            int outFrom)
+    {
+        if (outFrom == from && (in == null || inType == outType))
+        {
+            label(in, out, outType, thresholds, lookupTable, from, to);
+            return;
+        }
+
+        if (in == null)
+        {
+            fill(out, outType, classOf(0, thresholds), outFrom, outFrom + to - from);
+            return;
+        }
+
+        switch (outType)
+        {
+        case UBYTE:
+        case BYTE:
+            labelToBytes(in, inType, thresholds, lookupTable, (byte[]) out, from, to, outFrom);
+            break;
+        case USHORT:
+        case SHORT:
+            labelToShorts(in, inType, thresholds, lookupTable, (short[]) out, from, to, outFrom);
+            break;
+        default:
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                Array1DUtil.setValue(out, o, outType, classOf(Array1DUtil.getValue(in, i, inType), thresholds));
+        }
+    }
+
+    private static void labelToBytes(Object in, DataType inType, double[] thresholds, short[] lookupTable, byte[] out, int from, int to, int outFrom)
+    {
+        boolean sorted = useBinarySearch(thresholds);
+
+        switch (inType)
+        {
+        case UBYTE:
+        case BYTE:
+        {
+            int mask = inType == DataType.UBYTE ? 0xFF : -1;
+            byte[] data = (byte[]) in;
+            if (lookupTable != null)
+            {
+                int offset = getLookupTableOffset(inType);
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (byte) lookupTable[(data[i] & mask) - offset];
+            }
+            else
+            {
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (byte) classify(data[i] & mask, thresholds, sorted);
+            }
+            break;
+        }
+        case USHORT:
+        case SHORT:
+        {
+            int mask = inType == DataType.USHORT ? 0xFFFF : -1;
+            short[] data = (short[]) in;
+            if (lookupTable != null)
+            {
+                int offset = getLookupTableOffset(inType);
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (byte) lookupTable[(data[i] & mask) - offset];
+            }
+            else
+            {
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (byte) classify(data[i] & mask, thresholds, sorted);
+            }
+            break;
+        }
+        case INT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (byte) classify(data[i], thresholds, sorted);
+            break;
+        }
+        case UINT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (byte) classify(data[i] & 0xFFFFFFFFL, thresholds, sorted);
+            break;
+        }
+        case FLOAT:
+        {
+            float[] data = (float[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (byte) classify(data[i], thresholds, sorted);
+            break;
+        }
+        case DOUBLE:
+        {
+            double[] data = (double[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (byte) classify(data[i], thresholds, sorted);
+            break;
+        }
+        default:
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (byte) classOf(Array1DUtil.getValue(in, i, inType), thresholds);
+        }
+    }
+
+    private static void labelToShorts(Object in, DataType inType, double[] thresholds, short[] lookupTable, short[] out, int from, int to, int outFrom)
+    {
+        boolean sorted = useBinarySearch(thresholds);
+
+        switch (inType)
+        {
+        case UBYTE:
+        case BYTE:
+        {
+            int mask = inType == DataType.UBYTE ? 0xFF : -1;
+            byte[] data = (byte[]) in;
+            if (lookupTable != null)
+            {
+                int offset = getLookupTableOffset(inType);
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = lookupTable[(data[i] & mask) - offset];
+            }
+            else
+            {
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (short) classify(data[i] & mask, thresholds, sorted);
+            }
+            break;
+        }
+        case USHORT:
+        case SHORT:
+        {
+            int mask = inType == DataType.USHORT ? 0xFFFF : -1;
+            short[] data = (short[]) in;
+            if (lookupTable != null)
+            {
+                int offset = getLookupTableOffset(inType);
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = lookupTable[(data[i] & mask) - offset];
+            }
+            else
+            {
+                for (int i = from, o = outFrom; i < to; i++, o++)
+                    out[o] = (short) classify(data[i] & mask, thresholds, sorted);
+            }
+            break;
+        }
+        case INT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (short) classify(data[i], thresholds, sorted);
+            break;
+        }
+        case UINT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (short) classify(data[i] & 0xFFFFFFFFL, thresholds, sorted);
+            break;
+        }
+        case FLOAT:
+        {
+            float[] data = (float[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (short) classify(data[i], thresholds, sorted);
+            break;
+        }
+        case DOUBLE:
+        {
+            double[] data = (double[]) in;
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (short) classify(data[i], thresholds, sorted);
+            break;
+        }
+        default:
+            for (int i = from, o = outFrom; i < to; i++, o++)
+                out[o] = (short) classOf(Array1DUtil.getValue(in, i, inType), thresholds);
+        }
+    }
+
+    /**
+     * Labels the pixels of the specified range of the input array into a 1-bit packed binary mask
+     * (see {@link PackedBinaryMask}), where a bit is set if the pixel belongs to class 1 (i.e. the
+     * value is not below the threshold)
+     *
+     * @param in
+     *            the input array (a <code>null</code> array is considered filled with zeros)
+     * @param dataType
+     *            the data type of the input array
+     * @param threshold
+     *            the threshold
+     * @param out
+     *            the output words
+     * @param from
+     *            the first pixel to label (inclusive), which must be a multiple of 64 so that
+     *            concurrent ranges never share a word
+     * @param to
+     *            the last pixel to label (exclusive)
+     */
+    public static void labelPacked(Object in, DataType dataType, double threshold, long[] out, int from, int to)
+    {
+        if (from % 64 != 0) throw new IllegalArgumentException("Packed labeling must start on a word boundary (pixel " + from + ")");
+
+        Arrays.fill(out, from >>> 6, PackedBinaryMask.getNumberOfWords(to), 0L);
+
+        if (in == null)
+        {
+            if (!(0 < threshold))
+            {
+                for (int i = from; i < to; i++)
+                    out[i >>> 6] |= 1L << i;
+            }
+            return;
+        }
+
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+        {
+            int mask = dataType == DataType.UBYTE ? 0xFF : -1;
+            byte[] data = (byte[]) in;
+            for (int i = from; i < to; i++)
+                if (!((data[i] & mask) < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        case USHORT:
+        case SHORT:
+        {
+            int mask = dataType == DataType.USHORT ? 0xFFFF : -1;
+            short[] data = (short[]) in;
+            for (int i = from; i < to; i++)
+                if (!((data[i] & mask) < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        case INT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from; i < to; i++)
+                if (!(data[i] < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        case UINT:
+        {
+            int[] data = (int[]) in;
+            for (int i = from; i < to; i++)
+                if (!((data[i] & 0xFFFFFFFFL) < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        case FLOAT:
+        {
+            float[] data = (float[]) in;
+            for (int i = from; i < to; i++)
+                if (!(data[i] < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        case DOUBLE:
+        {
+            double[] data = (double[]) in;
+            for (int i = from; i < to; i++)
+                if (!(data[i] < threshold)) out[i >>> 6] |= 1L << i;
+            break;
+        }
+        default:
+            for (int i = from; i < to; i++)
+                if (!(Array1DUtil.getValue(in, i, dataType) < threshold)) out[i >>> 6] |= 1L << i;
+        }
+    }
+
+    /**
+     * Fills the specified range of the given array with a constant label
+     */
+    private static void fill(Object out, DataType dataType, int label, int from, int to)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+        case BYTE:
+            Arrays.fill((byte[]) out, from, to, (byte) label);
+            break;
+        case USHORT:
+        case SHORT:
+            Arrays.fill((short[]) out, from, to, (short) label);
+            break;
+        case UINT:
+        case INT:
+            Arrays.fill((int[]) out, from, to, label);
+            break;
+        case FLOAT:
+            Arrays.fill((float[]) out, from, to, label);
+            break;
+        case DOUBLE:
+            Arrays.fill((double[]) out, from, to, label);
+            break;
+        default:
+            for (int i = from; i < to; i++)
+                Array1DUtil.setValue(out, i, dataType, label);
+        }
+    }
+
+    /**
+     * 8-bit kernel. The mask is 0xFF for unsigned data, and -1 (no-op) for signed data
+     */
+    private static void label(byte[] in, int mask, byte[] out, double[] thresholds, short[] lookupTable, int from, int to)
+    {
+        if (lookupTable != null)
+        {
+            int offset = mask == 0xFF ? 0 : Byte.MIN_VALUE;
+            for (int i = from; i < to; i++)
+                out[i] = (byte) lookupTable[(in[i] & mask) - offset];
+        }
+        else if (thresholds.length == 1)
+        {
+            // special 2-class case
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = (in[i] & mask) < thr0 ? (byte) 0 : (byte) 1;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = (byte) classify(in[i] & mask, thresholds, sorted);
+        }
+    }
+
+    /**
+     * 16-bit kernel. The mask is 0xFFFF for unsigned data, and -1 (no-op) for signed data
+     */
+    private static void label(short[] in, int mask, short[] out, double[] thresholds, short[] lookupTable, int from, int to)
+    {
+        if (lookupTable != null)
+        {
+            int offset = mask == 0xFFFF ? 0 : Short.MIN_VALUE;
+            for (int i = from; i < to; i++)
+                out[i] = lookupTable[(in[i] & mask) - offset];
+        }
+        else if (thresholds.length == 1)
+        {
+            // special 2-class case
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = (in[i] & mask) < thr0 ? (short) 0 : (short) 1;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = (short) classify(in[i] & mask, thresholds, sorted);
+        }
+    }
+
+    private static void label(int[] in, int[] out, double[] thresholds, int from, int to)
+    {
+        if (thresholds.length == 1)
+        {
+            // special 2-class case
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = in[i] < thr0 ? 0 : 1;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = classify(in[i], thresholds, sorted);
+        }
+    }
+
+    private static void labelUnsigned(int[] in, int[] out, double[] thresholds, int from, int to)
+    {
+        if (thresholds.length == 1)
+        {
+            // special 2-class case
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = (in[i] & 0xFFFFFFFFL) < thr0 ? 0 : 1;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = classify(in[i] & 0xFFFFFFFFL, thresholds, sorted);
+        }
+    }
+
+    private static void label(float[] in, float[] out, double[] thresholds, int from, int to)
+    {
+        if (thresholds.length == 1)
+        {
+            // special 2-class case (NaN values fall in class 1, as in the n-class case)
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = in[i] < thr0 ? 0f : 1f;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = classify(in[i], thresholds, sorted);
+        }
+    }
+
+    private static void label(double[] in, double[] out, double[] thresholds, int from, int to)
+    {
+        if (thresholds.length == 1)
+        {
+            // special 2-class case (NaN values fall in class 1, as in the n-class case)
+            double thr0 = thresholds[0];
+            for (int i = from; i < to; i++)
+                out[i] = in[i] < thr0 ? 0.0 : 1.0;
+        }
+        else
+        {
+            boolean sorted = useBinarySearch(thresholds);
+            for (int i = from; i < to; i++)
+                out[i] = classify(in[i], thresholds, sorted);
+        }
+    }
+}
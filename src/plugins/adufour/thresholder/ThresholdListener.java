@@ -0,0 +1,17 @@
+package plugins.adufour.thresholder;
+
+/**
+ * Listener notified of the metrics of each thresholding run (see
+ * {@link ThresholdMetrics#addListener(ThresholdListener)})
+ */
+public interface ThresholdListener
+{
+    /**
+     * Called (in the thread that ran the thresholding) when a run has completed, successfully or
+     * not
+     *
+     * @param run
+     *            the metrics of the run
+     */
+    void runCompleted(ThresholdRun run);
+}
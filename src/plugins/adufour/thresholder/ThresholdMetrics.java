@@ -0,0 +1,209 @@
+package plugins.adufour.thresholder;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import plugins.adufour.thresholder.ThresholdRun.Phase;
+
+/**
+ * Collects the metrics of thresholding runs (see {@link ThresholdRun}), and notifies them to the
+ * registered listeners.<br>
+ * A run is started by {@link #begin(String, boolean)} and ended by {@link #end(ThresholdRun)}, and
+ * collects the metrics recorded in between by the calling thread, as well as by the tasks it hands
+ * over to worker threads. When no run is active (i.e. no listener is registered and no run summary
+ * is requested), recording a metric costs a single read of a volatile field
+ */
+public final class ThresholdMetrics
+{
+    private static final CopyOnWriteArrayList<ThresholdListener> listeners  = new CopyOnWriteArrayList<ThresholdListener>();
+
+    /**
+     * run collecting the metrics of each thread
+     */
+    private static final ThreadLocal<ThresholdRun>               currentRun = new ThreadLocal<ThresholdRun>();
+
+    /**
+     * number of runs in progress (in any thread)
+     */
+    private static volatile int                                  activeRuns;
+
+    private static final com.sun.management.ThreadMXBean         threadBean = getThreadBean();
+
+    private ThresholdMetrics()
+    {
+    }
+
+    /**
+     * Registers a listener notified of the metrics of every subsequent run
+     */
+    public static void addListener(ThresholdListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(ThresholdListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a run in the calling thread, unless no listener is registered and the metrics are not
+     * otherwise needed
+     *
+     * @param name
+     *            the name of the run
+     * @param force
+     *            true to collect the metrics even if no listener is registered
+     * @return the run (to be given to {@link #end(ThresholdRun)}), or null if no metric is
+     *         collected (or if a run is already in progress in the calling thread, in which case
+     *         the metrics are collected by that run)
+     */
+    public static ThresholdRun begin(String name, boolean force)
+    {
+        if (!force && listeners.isEmpty()) return null;
+
+        // nested runs are collected by the outer run
+        if (currentRun.get() != null) return null;
+
+        ThresholdRun run = new ThresholdRun(name, getAllocatedBytes());
+
+        currentRun.set(run);
+        synchronized (ThresholdMetrics.class)
+        {
+            activeRuns++;
+        }
+
+        return run;
+    }
+
+    /**
+     * Ends a run started in the calling thread, and notifies the listeners
+     *
+     * @param run
+     *            the run returned by {@link #begin(String, boolean)} (nothing is done if null)
+     */
+    public static void end(ThresholdRun run)
+    {
+        if (run == null) return;
+
+        run.end(getAllocatedBytes());
+
+        currentRun.remove();
+        synchronized (ThresholdMetrics.class)
+        {
+            activeRuns--;
+        }
+
+        for (ThresholdListener listener : listeners)
+            listener.runCompleted(run);
+    }
+
+    /**
+     * @return the starting time of a phase to give to {@link #record(Phase, long, long)}, or 0 if
+     *         the calling thread does not collect metrics
+     */
+    static long start()
+    {
+        if (activeRuns == 0 || currentRun.get() == null) return 0;
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the completion of a phase in the run of the calling thread (if any)
+     *
+     * @param phase
+     *            the completed phase
+     * @param startTime
+     *            the value returned by {@link #start()} when the phase started
+     * @param pixels
+     *            the number of pixels processed
+     */
+    static void record(Phase phase, long startTime, long pixels)
+    {
+        if (startTime == 0) return;
+
+        ThresholdRun run = currentRun.get();
+        if (run != null) run.addPhase(phase, System.nanoTime() - startTime, pixels);
+    }
+
+    /**
+     * Records a K-means clustering in the run of the calling thread (if any)
+     */
+    static void recordKMeans(int iterations, boolean converged)
+    {
+        if (activeRuns == 0) return;
+
+        ThresholdRun run = currentRun.get();
+        if (run != null) run.addKMeans(iterations, converged);
+    }
+
+    /**
+     * Wraps a task handed over to a worker thread, so that the metrics it records are collected by
+     * the run of the calling thread
+     *
+     * @return the wrapped task (or the given task if the calling thread does not collect metrics)
+     */
+    static <T> Callable<T> propagate(final Callable<T> task)
+    {
+        if (activeRuns == 0) return task;
+
+        final ThresholdRun run = currentRun.get();
+        if (run == null) return task;
+
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                ThresholdRun previous = currentRun.get();
+                currentRun.set(run);
+
+                long allocated = getAllocatedBytes();
+
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    run.addAllocatedBytes(allocated < 0 ? -1 : getAllocatedBytes() - allocated);
+
+                    if (previous == null) currentRun.remove();
+                    else currentRun.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes allocated so far by the calling thread, or -1 if unsupported
+     */
+    private static long getAllocatedBytes()
+    {
+        if (threadBean == null) return -1;
+
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean()
+    {
+        try
+        {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+            if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+            {
+                ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+                return (com.sun.management.ThreadMXBean) bean;
+            }
+        }
+        catch (Throwable e)
+        {
+            // not available on this virtual machine
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,224 @@
+package plugins.adufour.thresholder;
+
+import java.util.Locale;
+
+/**
+ * Metrics of a thresholding run (see {@link ThresholdMetrics}): time spent and pixels processed in
+ * each phase, memory allocated, and convergence of the K-means clustering.<br>
+ * Phases running on several threads at once are accounted once per thread, hence the total time
+ * of the phases may exceed the duration of the run
+ */
+public class ThresholdRun
+{
+    /**
+     * The instrumented phases of a thresholding run
+     */
+    public enum Phase
+    {
+        /**
+         * data bounds (first pass of the histograms of floating-point and 32-bit data)
+         */
+        BOUNDS,
+        /**
+         * histogram accumulation
+         */
+        HISTOGRAM,
+        /**
+         * threshold computation from the histogram (K-means, Otsu)
+         */
+        CLUSTERING,
+        /**
+         * pixel classification (labeled sequence or encoded class masks)
+         */
+        LABELING,
+        /**
+         * connected component labeling
+         */
+        CONNECTED_COMPONENTS,
+        /**
+         * construction of the output ROI
+         */
+        ROI_CONSTRUCTION
+    }
+
+    private final String name;
+
+    private final long   startTime;
+
+    private long         endTime;
+
+    private final long[] phaseTimes          = new long[Phase.values().length];
+
+    private final long[] phasePixels         = new long[Phase.values().length];
+
+    private final int[]  phaseCalls          = new int[Phase.values().length];
+
+    private long         allocatedBytes;
+
+    /**
+     * bytes allocated by the calling thread before the run
+     */
+    private final long   initialAllocation;
+
+    private boolean      allocationSupported = true;
+
+    private int          kMeansRuns, kMeansIterations, kMeansMaxIterations, kMeansUnconverged;
+
+    ThresholdRun(String name, long initialAllocation)
+    {
+        this.name = name;
+        this.startTime = System.nanoTime();
+        this.initialAllocation = initialAllocation;
+        if (initialAllocation < 0) allocationSupported = false;
+    }
+
+    synchronized void addPhase(Phase phase, long nanos, long pixels)
+    {
+        phaseTimes[phase.ordinal()] += nanos;
+        phasePixels[phase.ordinal()] += pixels;
+        phaseCalls[phase.ordinal()]++;
+    }
+
+    synchronized void addAllocatedBytes(long bytes)
+    {
+        if (bytes < 0) allocationSupported = false;
+        else allocatedBytes += bytes;
+    }
+
+    synchronized void addKMeans(int iterations, boolean converged)
+    {
+        kMeansRuns++;
+        kMeansIterations += iterations;
+        kMeansMaxIterations = Math.max(kMeansMaxIterations, iterations);
+        if (!converged) kMeansUnconverged++;
+    }
+
+    synchronized void end(long finalAllocation)
+    {
+        endTime = System.nanoTime();
+        addAllocatedBytes(finalAllocation < 0 ? -1 : finalAllocation - initialAllocation);
+    }
+
+    /**
+     * @return the name of the run
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the duration of the run (in nanoseconds)
+     */
+    public synchronized long getDuration()
+    {
+        return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    /**
+     * @return the time spent in the given phase, summed over all threads (in nanoseconds)
+     */
+    public synchronized long getTime(Phase phase)
+    {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    /**
+     * @return the number of pixels processed in the given phase
+     */
+    public synchronized long getPixels(Phase phase)
+    {
+        return phasePixels[phase.ordinal()];
+    }
+
+    /**
+     * @return the number of times the given phase was run
+     */
+    public synchronized int getCalls(Phase phase)
+    {
+        return phaseCalls[phase.ordinal()];
+    }
+
+    /**
+     * @return the pixel throughput of the given phase (in pixels per second and per thread), or 0
+     *         if no pixel was processed
+     */
+    public synchronized double getThroughput(Phase phase)
+    {
+        long time = phaseTimes[phase.ordinal()];
+
+        return time == 0 ? 0 : phasePixels[phase.ordinal()] * 1e9 / time;
+    }
+
+    /**
+     * @return the number of bytes allocated during the run (by the calling thread and the worker
+     *         threads), or -1 if the virtual machine cannot measure it
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return allocationSupported ? allocatedBytes : -1;
+    }
+
+    /**
+     * @return the number of K-means clusterings run
+     */
+    public synchronized int getKMeansRuns()
+    {
+        return kMeansRuns;
+    }
+
+    /**
+     * @return the total number of K-means iterations
+     */
+    public synchronized int getKMeansIterations()
+    {
+        return kMeansIterations;
+    }
+
+    /**
+     * @return the largest number of iterations of a single K-means clustering
+     */
+    public synchronized int getKMeansMaxIterations()
+    {
+        return kMeansMaxIterations;
+    }
+
+    /**
+     * @return the number of K-means clusterings that stopped before converging
+     */
+    public synchronized int getKMeansUnconverged()
+    {
+        return kMeansUnconverged;
+    }
+
+    /**
+     * @return a human-readable summary of the run (one line per phase)
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder summary = new StringBuilder();
+
+        summary.append(String.format(Locale.ROOT, "%s: %.1f ms", name, getDuration() / 1e6));
+        if (allocationSupported) summary.append(String.format(Locale.ROOT, ", %.1f MB allocated", allocatedBytes / 1e6));
+        summary.append('\n');
+
+        for (Phase phase : Phase.values())
+        {
+            int i = phase.ordinal();
+            if (phaseCalls[i] == 0) continue;
+
+            summary.append(String.format(Locale.ROOT, "  %-20s %10.1f ms (x%d)", phase, phaseTimes[i] / 1e6, phaseCalls[i]));
+            if (phasePixels[i] > 0) summary.append(String.format(Locale.ROOT, ", %d px, %.1f Mpx/s", phasePixels[i], getThroughput(phase) / 1e6));
+            summary.append('\n');
+        }
+
+        if (kMeansRuns > 0)
+        {
+            summary.append(String.format(Locale.ROOT, "  K-means: %d run(s), %d iteration(s) (max: %d), %d unconverged\n", kMeansRuns, kMeansIterations,
+                    kMeansMaxIterations, kMeansUnconverged));
+        }
+
+        return summary.toString();
+    }
+}
@@ -0,0 +1,229 @@
+package plugins.adufour.thresholder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Approximate threshold estimation on a stratified sample of the data, for sequences too large to
+ * be read entirely in reasonable time.<br>
+ * The rows of all the planes to process are divided into strata of consecutive rows, and one row
+ * is picked at random in each stratum (so that every plane and every region of each plane is
+ * represented). The sampled rows are dealt into a few interleaved sub-samples, whose thresholds
+ * are computed independently: their spread gives an estimate of the error of the thresholds
+ * computed on the whole sample (which cannot be lower than half a histogram bin). The sample is
+ * doubled until the estimated error falls below the requested tolerance (in the worst case, all
+ * the rows are read and the thresholds are exact)
+ */
+public final class ThresholdSampler
+{
+    /**
+     * Default number of pixels in the first sample
+     */
+    public static final int DEFAULT_INITIAL_SAMPLE_SIZE = 1 << 16;
+
+    /**
+     * number of interleaved sub-samples used to estimate the error
+     */
+    private static final int NB_GROUPS                   = 4;
+
+    /**
+     * Computes thresholds from a histogram
+     */
+    private abstract static class Estimator
+    {
+        abstract double[] computeThresholds(Histogram histogram);
+    }
+
+    private ThresholdSampler()
+    {
+    }
+
+    /**
+     * Estimates K-means thresholds (see {@link KMeans#computeKMeansThresholds(Histogram, int, int)})
+     * on a sample of the data
+     *
+     * @param input
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the thresholds
+     * @param t
+     *            the frame on which to compute the thresholds, or -1 to use all frames
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @param tolerance
+     *            the largest acceptable error on the thresholds (in intensity units)
+     * @return the estimated thresholds (of size [nbClasses-1]) and their estimated error
+     */
+    public static ThresholdEstimate estimateKMeansThresholds(Sequence input, int c, int t, final int nbClasses, final int nbBins, double tolerance)
+    {
+        return estimate(input, c, t, nbBins, tolerance, new Estimator()
+        {
+            @Override
+            double[] computeThresholds(Histogram histogram)
+            {
+                return KMeans.computeKMeansThresholds(histogram, nbClasses, nbBins);
+            }
+        });
+    }
+
+    /**
+     * Estimates intensity percentiles (see {@link Histogram#getPercentiles(double...)}) on a
+     * sample of the data
+     *
+     * @param input
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the percentiles
+     * @param t
+     *            the frame on which to compute the percentiles, or -1 to use all frames
+     * @param tolerance
+     *            the largest acceptable error on the thresholds (in intensity units)
+     * @param percentiles
+     *            the percentiles to compute (between 0 and 100)
+     * @return the estimated percentiles and their estimated error
+     */
+    public static ThresholdEstimate estimatePercentileThresholds(Sequence input, int c, int t, double tolerance, final double... percentiles)
+    {
+        return estimate(input, c, t, Histogram.DEFAULT_QUANTILE_BINS, tolerance, new Estimator()
+        {
+            @Override
+            double[] computeThresholds(Histogram histogram)
+            {
+                return histogram.getPercentiles(percentiles);
+            }
+        });
+    }
+
+    private static ThresholdEstimate estimate(Sequence input, int c, int t, int nbBins, double tolerance, Estimator estimator)
+    {
+        if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+        if (tolerance < 0) throw new IllegalArgumentException("Thresholder: the tolerance cannot be negative");
+
+        List<int[]> planes = new ArrayList<int[]>();
+
+        for (int time = t < 0 ? 0 : t; time <= (t < 0 ? input.getSizeT() - 1 : t); time++)
+            for (int z = 0; z < input.getSizeZ(time); z++)
+                planes.add(new int[] { time, z });
+
+        int sizeX = input.getSizeX(), sizeY = input.getSizeY();
+        long nbRows = (long) planes.size() * sizeY;
+
+        // number of consecutive rows per stratum (one row is sampled in each)
+        long stratumSize = Math.max(1, nbRows / Math.max(1, DEFAULT_INITIAL_SAMPLE_SIZE / Math.max(1, sizeX)));
+
+        // fixed seed: estimates are reproducible
+        Random random = new Random(0);
+
+        while (true)
+        {
+            ThresholdEstimate estimate = sample(input, c, planes, stratumSize, nbBins, estimator, random);
+
+            if (estimate.isExact() || estimate.getMaxError() <= tolerance) return estimate;
+
+            stratumSize /= 2;
+        }
+    }
+
+    /**
+     * Computes thresholds on one row per stratum of the given size
+     */
+    private static ThresholdEstimate sample(Sequence input, int c, List<int[]> planes, long stratumSize, int nbBins, Estimator estimator, Random random)
+    {
+        DataType dataType = input.getDataType_();
+        int sizeX = input.getSizeX(), sizeY = input.getSizeY();
+        long nbRows = (long) planes.size() * sizeY;
+
+        int nbStrata = (int) ((nbRows + stratumSize - 1) / stratumSize);
+
+        long[] rows = new long[nbStrata];
+        for (int k = 0; k < nbStrata; k++)
+        {
+            long first = k * stratumSize;
+            rows[k] = first + (long) (random.nextDouble() * Math.min(stratumSize, nbRows - first));
+        }
+
+        Histogram[] groups = new Histogram[NB_GROUPS];
+
+        if (Histogram.isExactType(dataType))
+        {
+            groups[0] = new Histogram(dataType);
+        }
+        else
+        {
+            // bounds of the sample (values outside of them fall in the first or last bin)
+            double[] minmax = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+            for (long row : rows)
+            {
+                Object slice = getSlice(input, c, planes, sizeY, row);
+                int from = (int) (row % sizeY) * sizeX;
+                if (slice != null) Histogram.updateBounds(slice, dataType, from, from + sizeX, minmax);
+            }
+
+            groups[0] = new Histogram(minmax[0], minmax[1], nbBins);
+        }
+
+        for (int g = 1; g < NB_GROUPS; g++)
+            groups[g] = groups[0].createEmpty();
+
+        for (int k = 0; k < nbStrata; k++)
+        {
+            Object slice = getSlice(input, c, planes, sizeY, rows[k]);
+            int from = (int) (rows[k] % sizeY) * sizeX;
+            if (slice != null) groups[k % NB_GROUPS].add(slice, dataType, from, from + sizeX);
+        }
+
+        Histogram histogram = groups[0].createEmpty();
+        for (Histogram group : groups)
+            histogram.add(group);
+
+        double[] thresholds = estimator.computeThresholds(histogram);
+        double[] errors = new double[thresholds.length];
+
+        if (stratumSize > 1)
+        {
+            if (nbStrata < NB_GROUPS)
+            {
+                // too few rows to tell
+                Arrays.fill(errors, Double.POSITIVE_INFINITY);
+            }
+            else
+            {
+                double[][] groupThresholds = new double[NB_GROUPS][];
+                for (int g = 0; g < NB_GROUPS; g++)
+                    groupThresholds[g] = estimator.computeThresholds(groups[g]);
+
+                // thresholds cannot be resolved below the width of a histogram bin
+                double resolution = (histogram.getMax() - histogram.getMin()) / (nbBins - 1);
+
+                for (int i = 0; i < errors.length; i++)
+                {
+                    double mean = 0, variance = 0;
+
+                    for (double[] group : groupThresholds)
+                        mean += group[i] / NB_GROUPS;
+                    for (double[] group : groupThresholds)
+                        variance += (group[i] - mean) * (group[i] - mean);
+
+                    // standard error of the mean of the group estimates
+                    errors[i] = Math.max(Math.sqrt(variance / (NB_GROUPS * (NB_GROUPS - 1))), resolution / 2);
+                }
+            }
+        }
+
+        return new ThresholdEstimate(thresholds, errors, (long) nbStrata * sizeX, nbRows * sizeX);
+    }
+
+    private static Object getSlice(Sequence input, int c, List<int[]> planes, int sizeY, long row)
+    {
+        int[] plane = planes.get((int) (row / sizeY));
+        return input.getDataXY(plane[0], plane[1], c);
+    }
+}
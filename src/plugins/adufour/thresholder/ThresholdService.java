@@ -0,0 +1,310 @@
+package plugins.adufour.thresholder;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+
+/**
+ * Asynchronous thresholding service, for applications handling many concurrent (and typically
+ * small) requests. Each request returns immediately with a {@link CompletableFuture}, and is
+ * orchestrated by a lightweight thread (a virtual thread if the Java runtime supports them, or a
+ * thread of a cached pool otherwise), while the computations themselves run on a bounded pool of
+ * threads (one per processor by default), each request being computed by a single thread.<br>
+ * Cancelling a returned future (see {@link CompletableFuture#cancel(boolean)}) stops the
+ * computation at the next slice (see {@link CancellationToken}), so that abandoned requests no
+ * longer use processor time
+ */
+public class ThresholdService implements Closeable
+{
+    /**
+     * Future of a request, cancelling the computation along with the future
+     */
+    private static class Request<T> extends CompletableFuture<T>
+    {
+        final CancellationToken token = new CancellationToken();
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            token.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    private final ExecutorService orchestrator;
+
+    private final ExecutorService computePool;
+
+    /**
+     * requests submitted and not completed yet (cancelled when the service is closed)
+     */
+    private final Set<Request<?>> requests = Collections.newSetFromMap(new ConcurrentHashMap<Request<?>, Boolean>());
+
+    private volatile boolean      closed;
+
+    /**
+     * Creates a service computing at most one request per available processor at once
+     */
+    public ThresholdService()
+    {
+        this(SliceExecutor.getDefaultThreadCount());
+    }
+
+    /**
+     * @param nbThreads
+     *            the maximum number of requests computed at once
+     */
+    public ThresholdService(int nbThreads)
+    {
+        if (nbThreads < 1) throw new IllegalArgumentException("Thresholder: at least one thread is needed");
+
+        this.orchestrator = createOrchestrator();
+        this.computePool = Executors.newFixedThreadPool(nbThreads, SliceExecutor.createThreadFactory("Thresholder-service"));
+    }
+
+    /**
+     * @return an executor starting one virtual thread per task if the runtime supports them, or a
+     *         cached pool of (daemon) threads otherwise
+     */
+    private static ExecutorService createOrchestrator()
+    {
+        try
+        {
+            // Java 21+ (looked up dynamically, the plug-in targets older runtimes)
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (Exception e)
+        {
+            return Executors.newCachedThreadPool(SliceExecutor.createThreadFactory("Thresholder-requests"));
+        }
+    }
+
+    /**
+     * Computes K-means thresholds asynchronously (see
+     * {@link KMeans#computeKMeansThresholds(Sequence, int, int, int, int)})
+     *
+     * @param input
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the thresholds
+     * @param t
+     *            the frame on which to compute the thresholds, or -1 to use all frames
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return the future thresholds, of size [nbClasses-1]
+     */
+    public CompletableFuture<double[]> computeKMeansThresholds(final Sequence input, final int c, final int t, final int nbClasses, final int nbBins)
+    {
+        return submit(new Callable<double[]>()
+        {
+            @Override
+            public double[] call()
+            {
+                if (t < 0) return KMeans.computeKMeansThresholds(input, c, nbClasses, nbBins);
+
+                return KMeans.computeKMeansThresholds(input, c, t, nbClasses, nbBins);
+            }
+        });
+    }
+
+    /**
+     * Computes multi-level Otsu thresholds asynchronously (see
+     * {@link MultiOtsu#computeOtsuThresholds(Sequence, int, int, int, int)})
+     *
+     * @param input
+     *            the input sequence
+     * @param c
+     *            the channel on which to compute the thresholds
+     * @param t
+     *            the frame on which to compute the thresholds, or -1 to use all frames
+     * @param nbClasses
+     *            the number of classes to extract
+     * @param nbBins
+     *            the number of histogram bins
+     * @return the future thresholds, of size [nbClasses-1]
+     */
+    public CompletableFuture<double[]> computeOtsuThresholds(final Sequence input, final int c, final int t, final int nbClasses, final int nbBins)
+    {
+        return submit(new Callable<double[]>()
+        {
+            @Override
+            public double[] call()
+            {
+                if (t < 0) return MultiOtsu.computeOtsuThresholds(input, c, nbClasses, nbBins);
+
+                return MultiOtsu.computeOtsuThresholds(input, c, t, nbClasses, nbBins);
+            }
+        });
+    }
+
+    /**
+     * Thresholds a sequence channel asynchronously, and returns the result as a labeled sequence
+     * (see {@link Thresholder#threshold(Sequence, int, double[][], boolean, int)})
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @return the future labeled sequence
+     */
+    public CompletableFuture<Sequence> threshold(final Sequence input, final int c, final double[][] thresholdsT)
+    {
+        return submit(new Callable<Sequence>()
+        {
+            @Override
+            public Sequence call()
+            {
+                return Thresholder.threshold(input, c, thresholdsT, false, 1);
+            }
+        });
+    }
+
+    /**
+     * Thresholds a sequence channel asynchronously, and returns the result as ROI (see
+     * {@link Thresholder#threshold(Sequence, int, double[][], int)})
+     *
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @param connectedComponents
+     *            true to return one ROI per connected component (see
+     *            {@link ConnectedComponents}), false to return one ROI per class and frame
+     * @return the future ROI
+     */
+    public CompletableFuture<ROI[]> thresholdROI(final Sequence input, final int c, final double[][] thresholdsT, final boolean connectedComponents)
+    {
+        return submit(new Callable<ROI[]>()
+        {
+            @Override
+            public ROI[] call()
+            {
+                if (!connectedComponents) return Thresholder.threshold(input, c, thresholdsT, 1);
+
+                List<ROI> rois = ConnectedComponents.extract(input, c, thresholdsT, 1, 0, Double.POSITIVE_INFINITY);
+                return rois.toArray(new ROI[rois.size()]);
+            }
+        });
+    }
+
+    /**
+     * Runs a computation asynchronously: the orchestrating thread hands the computation over to
+     * the compute pool and waits for it, so that at most one computation per compute thread runs
+     * at once however many requests are pending
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> computation)
+    {
+        final Request<T> request = new Request<T>();
+
+        requests.add(request);
+
+        // closed (possibly while the pending requests were being cancelled)
+        if (closed)
+        {
+            requests.remove(request);
+            request.cancel(false);
+            return request;
+        }
+
+        try
+        {
+            orchestrator.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        compute(request, computation);
+                    }
+                    finally
+                    {
+                        requests.remove(request);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // closed concurrently
+            requests.remove(request);
+            request.cancel(false);
+        }
+
+        return request;
+    }
+
+    /**
+     * Hands a computation over to the compute pool and waits for it
+     */
+    private <T> void compute(Request<T> request, Callable<T> computation)
+    {
+        // cancelled before it started
+        if (request.isDone()) return;
+
+        CancellationToken previous = CancellationToken.attach(request.token);
+
+        try
+        {
+            Future<T> result = computePool.submit(CancellationToken.propagate(computation));
+
+            try
+            {
+                request.complete(result.get());
+            }
+            catch (InterruptedException e)
+            {
+                // the computation stops at the next slice
+                request.cancel(true);
+            }
+            catch (ExecutionException e)
+            {
+                request.completeExceptionally(e.getCause());
+            }
+        }
+        catch (Throwable e)
+        {
+            request.completeExceptionally(e);
+        }
+        finally
+        {
+            CancellationToken.attach(previous);
+        }
+    }
+
+    /**
+     * Stops the service: pending requests are cancelled, running computations are stopped at the
+     * next slice, and further requests are cancelled right away
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        for (Request<?> request : requests)
+            request.cancel(true);
+
+        orchestrator.shutdownNow();
+        computePool.shutdownNow();
+    }
+}
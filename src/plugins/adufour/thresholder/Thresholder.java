@@ -1,42 +1,46 @@
 package plugins.adufour.thresholder;
 
-import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 import icy.image.IcyBufferedImage;
-import icy.roi.BooleanMask2D;
 import icy.roi.ROI;
 import icy.sequence.Sequence;
 import icy.type.DataType;
-import icy.type.collection.array.Array1DUtil;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
+import plugins.adufour.ezplug.EzGUI;
 import plugins.adufour.ezplug.EzGroup;
 import plugins.adufour.ezplug.EzPlug;
+import plugins.adufour.ezplug.EzStoppable;
 import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarChannel;
 import plugins.adufour.ezplug.EzVarDoubleArrayNative;
 import plugins.adufour.ezplug.EzVarEnum;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarSequence;
-import plugins.adufour.roi.LabelExtractor;
-import plugins.adufour.roi.LabelExtractor.ExtractionType;
+import plugins.adufour.thresholder.ConnectedComponents.Connectivity;
+import plugins.adufour.thresholder.ThresholdRun.Phase;
 import plugins.adufour.vars.lang.VarROIArray;
 import plugins.adufour.vars.lang.VarSequence;
+import plugins.adufour.vars.lang.VarString;
 import plugins.adufour.vars.util.VarException;
 import plugins.kernel.roi.roi2d.ROI2DArea;
 import plugins.kernel.roi.roi3d.ROI3DArea;
 
-public class Thresholder extends EzPlug implements Block
+public class Thresholder extends EzPlug implements Block, EzStoppable
 {
-    private enum ThresholdMethod
+    public enum ThresholdMethod
     {
-        MANUAL, K_MEANS
+        MANUAL, K_MEANS, OTSU
     }
     
-    private enum ThresholdOutput
+    public enum ThresholdOutput
     {
         SEQUENCE("Labeled sequence"), ROI("Single ROI"), MULTI_ROI("Multiple ROI");
         
@@ -61,6 +65,7 @@ public class Thresholder extends EzPlug implements Block
     private EzVarDoubleArrayNative     thresholds    = new EzVarDoubleArrayNative("Manual thresholds", new double[][] { new double[] { 100, 200 } }, true);
     private EzVarBoolean               pct           = new EzVarBoolean("Treat as percentiles", false);
     private EzVarBoolean               timeDependent = new EzVarBoolean("Process frames independently", false);
+    private EzVarInteger               smoothing     = new EzVarInteger("Smoothing radius (frames)", 0, 0, 100, 1);
     private EzVarEnum<ThresholdOutput> outputType    = new EzVarEnum<ThresholdOutput>("Output as", ThresholdOutput.values(), ThresholdOutput.SEQUENCE);
     
     private EzVarBoolean filterBySize = new EzVarBoolean("Filter by size", false);
@@ -68,11 +73,22 @@ public class Thresholder extends EzPlug implements Block
     private EzVarInteger maxSize      = new EzVarInteger("Max size (px)", 10000, 1, 200000000, 1);
     private EzVarBoolean inPlace      = new EzVarBoolean("Overwrite input", false);
     
-    private VarSequence outLabels = new VarSequence("Binary output", null);
-    private VarROIArray outROI    = new VarROIArray("ROI");
+    private EzVarEnum<Connectivity> connectivity = new EzVarEnum<Connectivity>("Connectivity", Connectivity.values(), Connectivity.FACES);
+    
+    private EzVarInteger nbThreads = new EzVarInteger("Threads", SliceExecutor.getDefaultThreadCount(), 1, 256, 1);
+    
+    private VarSequence outLabels  = new VarSequence("Binary output", null);
+    private VarROIArray outROI     = new VarROIArray("ROI");
+    private VarROIArray outObjects = new VarROIArray("objects");
+    private VarString   outSummary = new VarString("run summary", "");
     
     private boolean blockMode = false;
     
+    /**
+     * cancellation token of the current run (if any)
+     */
+    private volatile CancellationToken currentRun;
+    
     @Override
     public void initialize()
     {
@@ -81,7 +97,7 @@ public class Thresholder extends EzPlug implements Block
         
         super.addEzComponent(method);
         
-        method.addVisibilityTriggerTo(nbClasses, ThresholdMethod.K_MEANS);
+        method.addVisibilityTriggerTo(nbClasses, ThresholdMethod.K_MEANS, ThresholdMethod.OTSU);
         super.addEzComponent(nbClasses);
         
         method.addVisibilityTriggerTo(thresholds, ThresholdMethod.MANUAL);
@@ -90,9 +106,12 @@ public class Thresholder extends EzPlug implements Block
         method.addVisibilityTriggerTo(pct, ThresholdMethod.MANUAL);
         super.addEzComponent(pct);
         
-        method.addVisibilityTriggerTo(timeDependent, ThresholdMethod.K_MEANS);
+        method.addVisibilityTriggerTo(timeDependent, ThresholdMethod.K_MEANS, ThresholdMethod.OTSU);
         super.addEzComponent(timeDependent);
         
+        timeDependent.addVisibilityTriggerTo(smoothing, true);
+        super.addEzComponent(smoothing);
+        
         super.addEzComponent(outputType);
         
         super.addEzComponent(filterBySize);
@@ -102,16 +121,96 @@ public class Thresholder extends EzPlug implements Block
         super.addEzComponent(sizeFilterGroup);
         filterBySize.addVisibilityTriggerTo(sizeFilterGroup, true);
         
+        outputType.addVisibilityTriggerTo(connectivity, ThresholdOutput.MULTI_ROI);
+        super.addEzComponent(connectivity);
+        
         outputType.addVisibilityTriggerTo(inPlace, ThresholdOutput.SEQUENCE);
         super.addEzComponent(inPlace);
+        
+        super.addEzComponent(nbThreads);
     }
     
     @Override
     public void execute()
     {
-        Sequence inSeq = in.getValue(true);
+        // metrics are only collected if someone is listening (or for the run summary output)
+        ThresholdRun run = ThresholdMetrics.begin("Thresholder (" + method.getValue() + ")", blockMode && outSummary.isReferenced());
+        
+        // stopped from the interface, or by interrupting the calling thread (e.g. protocols)
+        final Thread caller = Thread.currentThread();
+        
+        CancellationToken token = new CancellationToken()
+        {
+            @Override
+            public boolean isCancelled()
+            {
+                return super.isCancelled() || caller.isInterrupted();
+            }
+            
+            @Override
+            protected void progressChanged(double progress)
+            {
+                EzGUI ui = getUI();
+                if (ui != null) ui.setProgressBarValue(progress);
+            }
+        };
+        
+        currentRun = token;
+        CancellationToken previous = CancellationToken.attach(token);
+        
+        try
+        {
+            process();
+        }
+        catch (CancellationException e)
+        {
+            // nothing was output (and the input was left untouched)
+            if (blockMode) throw e;
+        }
+        finally
+        {
+            CancellationToken.attach(previous);
+            currentRun = null;
+            
+            ThresholdMetrics.end(run);
+            
+            setProgress(null);
+        }
         
-        int c = channel.getValue();
+        if (run != null && blockMode) outSummary.setValue(run.toString());
+    }
+    
+    /**
+     * Stops the current run at the next slice. The partial results are discarded
+     */
+    @Override
+    public void stopExecution()
+    {
+        CancellationToken token = currentRun;
+        if (token != null) token.cancel();
+    }
+    
+    /**
+     * Starts a new step of the current run in the progress bar (if any)
+     * 
+     * @param message
+     *            the step description, or null to reset the progress bar
+     */
+    private void setProgress(String message)
+    {
+        EzGUI ui = getUI();
+        
+        if (ui == null) return;
+        
+        ui.setProgressBarMessage(message == null ? "" : message);
+        ui.setProgressBarValue(0);
+    }
+    
+    private void process()
+    {
+        final Sequence inSeq = in.getValue(true);
+        
+        final int c = channel.getValue();
         
         if (c >= inSeq.getSizeC())
         {
@@ -120,8 +219,12 @@ public class Thresholder extends EzPlug implements Block
         
         ThresholdMethod algorithm = method.getValue();
         
+        int threads = nbThreads.getValue();
+        
         double[][] _thrs = new double[inSeq.getSizeT()][];
         
+        setProgress("Computing thresholds...");
+        
         switch (method.getValue())
         {
         case MANUAL: {
@@ -136,63 +239,104 @@ public class Thresholder extends EzPlug implements Block
                     
                 if (!timeDependent.getValue())
                 {
-                    // preserve the original array
-                    thrs = Arrays.copyOf(thrs, thrs.length);
-                    
                     // compute one global set of threshold percentile for the sequence
-                    double min = inSeq.getChannelMin(c);
-                    double max = inSeq.getChannelMax(c);
-                    
-                    for (int i = 0; i < thrs.length; i++)
-                        thrs[i] = min + thrs[i] * (max - min) / 100;
+                    thrs = ThresholdCache.getHistogram(inSeq, c, -1, Histogram.DEFAULT_QUANTILE_BINS).getPercentiles(thrs);
                 }
             }
             
-            for (int t = 0; t < inSeq.getSizeT(); t++)
+            if (pct.getValue() && timeDependent.getValue())
             {
-                _thrs[t] = Arrays.copyOf(thrs, thrs.length);
+                // interpret thresholds as intensity percentiles of each frame (frames in parallel)
+                final double[] percentiles = thrs;
                 
-                if (pct.getValue() && timeDependent.getValue())
+                _thrs = FrameThresholds.computePerFrame(inSeq.getSizeT(), new FrameThresholds.FrameWorker<Histogram>()
                 {
-                    // interpret thresholds as intensity percentiles
-                    
-                    double min = inSeq.getImage(t, 0).getChannelMin(c);
-                    double max = inSeq.getImage(t, 0).getChannelMax(c);
-                    
-                    for (int z = 1; z < inSeq.getSizeZ(); z++)
+                    @Override
+                    Histogram createBuffer()
                     {
-                        double[] sliceBounds = inSeq.getImage(t, z).getChannelBounds(c);
-                        if (sliceBounds[0] < min) min = sliceBounds[0];
-                        if (sliceBounds[1] > max) max = sliceBounds[1];
+                        return FrameThresholds.createHistogramBuffer(inSeq);
                     }
                     
-                    for (int i = 0; i < _thrs[t].length; i++)
-                        _thrs[t][i] = min + _thrs[t][i] * (max - min) / 100;
-                }
+                    @Override
+                    double[] computeThresholds(int t, Histogram buffer)
+                    {
+                        return ThresholdCache.getPercentileThresholds(inSeq, c, t, percentiles, buffer);
+                    }
+                }, threads);
+                
+                if (smoothing.getValue() > 0) _thrs = smoothThresholds(_thrs, smoothing.getValue());
+            }
+            else
+            {
+                for (int t = 0; t < inSeq.getSizeT(); t++)
+                    _thrs[t] = Arrays.copyOf(thrs, thrs.length);
             }
             
             break;
         }
-        case K_MEANS: {
-            _thrs = KMeans.computeKMeansThresholds(inSeq, c, timeDependent.getValue(), nbClasses.getValue().shortValue(), KMeans.DEFAULT_KMEANS_BINS);
+        case K_MEANS:
+        case OTSU: {
+            // histograms and thresholds are cached until the sequence data changes
+            final int classes = nbClasses.getValue();
+            final boolean kMeans = algorithm == ThresholdMethod.K_MEANS;
+            
+            if (timeDependent.getValue())
+            {
+                // frames are independent: compute their thresholds in parallel
+                _thrs = FrameThresholds.computePerFrame(inSeq.getSizeT(), new FrameThresholds.FrameWorker<Histogram>()
+                {
+                    @Override
+                    Histogram createBuffer()
+                    {
+                        return FrameThresholds.createHistogramBuffer(inSeq);
+                    }
+                    
+                    @Override
+                    double[] computeThresholds(int t, Histogram buffer)
+                    {
+                        if (kMeans) return ThresholdCache.getKMeansThresholds(inSeq, c, t, classes, KMeans.DEFAULT_KMEANS_BINS, buffer);
+                        
+                        return ThresholdCache.getOtsuThresholds(inSeq, c, t, classes, KMeans.DEFAULT_KMEANS_BINS, buffer);
+                    }
+                }, threads);
+                
+                if (smoothing.getValue() > 0) _thrs = smoothThresholds(_thrs, smoothing.getValue());
+            }
+            else
+            {
+                double[] thrs;
+                if (kMeans) thrs = ThresholdCache.getKMeansThresholds(inSeq, c, -1, classes, KMeans.DEFAULT_KMEANS_BINS);
+                else thrs = ThresholdCache.getOtsuThresholds(inSeq, c, -1, classes, KMeans.DEFAULT_KMEANS_BINS);
+                
+                for (int t = 0; t < inSeq.getSizeT(); t++)
+                    _thrs[t] = thrs;
+            }
             break;
         }
         default:
             throw new UnsupportedOperationException(algorithm + " method");
         }
         
+        setProgress("Thresholding...");
+        
         if (blockMode)
         {
             if (outLabels.isReferenced())
             {
-                Sequence sOUT = threshold(inSeq, c, _thrs, false);
+                Sequence sOUT = threshold(inSeq, c, _thrs, false, threads);
                 sOUT.setName(inSeq.getName() + "_thresholded");
                 outLabels.setValue(sOUT);
             }
             
             if (outROI.isReferenced())
             {
-                outROI.setValue(threshold(inSeq, c, _thrs));
+                outROI.setValue(threshold(inSeq, c, _thrs, threads));
+            }
+            
+            if (outObjects.isReferenced())
+            {
+                List<ROI> rois = ConnectedComponents.extract(inSeq, c, _thrs, connectivity.getValue(), threads, 0, Double.POSITIVE_INFINITY);
+                outObjects.setValue(rois.toArray(new ROI[rois.size()]));
             }
         }
         else
@@ -200,7 +344,7 @@ public class Thresholder extends EzPlug implements Block
             switch (outputType.getValue())
             {
             case SEQUENCE: {
-                Sequence sOUT = threshold(inSeq, c, _thrs, inPlace.getValue());
+                Sequence sOUT = threshold(inSeq, c, _thrs, inPlace.getValue(), threads);
                 
                 String newName = inSeq.getName() + " thresholded";
                 
@@ -225,45 +369,81 @@ public class Thresholder extends EzPlug implements Block
                 break;
             }
             case ROI: {
-                inSeq.removeAllROI();
+                // size check (performed before the ROI are built)
+                ROI[] rois;
+                if (filterBySize.getValue()) rois = threshold(inSeq, c, _thrs, threads, minSize.getValue(), maxSize.getValue());
+                else rois = threshold(inSeq, c, _thrs, threads);
                 
-                ROI[] rois = threshold(inSeq, c, _thrs);
+                // existing ROI are only replaced once the run has completed
+                inSeq.removeAllROI();
                 
                 for (ROI roi : rois)
-                {
-                    // size check?
-                    double size = roi.getNumberOfPoints();
-                    if (!filterBySize.getValue() || (size >= minSize.getValue() && size <= maxSize.getValue()))
-                    {
-                        inSeq.addROI(roi);
-                    }
-                }
+                    inSeq.addROI(roi);
                 
                 break;
             }
             case MULTI_ROI: {
+                // label the connected components directly on the threshold decision
+                // (the size check is performed before the ROI are built)
+                List<ROI> rois;
+                if (filterBySize.getValue()) rois = ConnectedComponents.extract(inSeq, c, _thrs, connectivity.getValue(), threads, minSize.getValue(), maxSize.getValue());
+                else rois = ConnectedComponents.extract(inSeq, c, _thrs, connectivity.getValue(), threads, 0, Double.POSITIVE_INFINITY);
+                
                 inSeq.removeAllROI();
                 
-                Sequence sOUT = threshold(inSeq, c, _thrs, inPlace.getValue());
-                List<ROI> rois = LabelExtractor.extractLabels(sOUT, ExtractionType.ALL_LABELS_VS_BACKGROUND, 0.0);
                 for (ROI roi : rois)
-                {
-                    // if (roi instanceof ROI4D) ((ROI4D) roi).setC(c);
-                    // else if (roi instanceof ROI3D) ((ROI3D) roi).setC(c);
-                    // else if (roi instanceof ROI2D) ((ROI2D) roi).setC(c);
-                    
-                    // size check?
-                    double size = roi.getNumberOfPoints();
-                    if (!filterBySize.getValue() || (size >= minSize.getValue() && size <= maxSize.getValue()))
-                    {
-                        inSeq.addROI(roi);
-                    }
-                }
+                    inSeq.addROI(roi);
             }
             }
         }
     }
     
+    /**
+     * Smoothes a series of per-frame thresholds over time (centered moving average of each
+     * threshold, the window being truncated at both ends of the series), so that the thresholds
+     * computed on each frame independently do not flicker from one frame to the next. Frames with
+     * a different number of thresholds are not averaged together
+     * 
+     * @param thresholdsT
+     *            a list of thresholds for each frame
+     * @param radius
+     *            the number of frames taken on each side of a frame (0 to leave the thresholds
+     *            unchanged)
+     * @return the smoothed thresholds (sorted thresholds remain sorted)
+     */
+    public static double[][] smoothThresholds(double[][] thresholdsT, int radius)
+    {
+        if (radius < 0) throw new IllegalArgumentException("Thresholder: the smoothing radius cannot be negative");
+        
+        double[][] smoothed = new double[thresholdsT.length][];
+        
+        for (int t = 0; t < thresholdsT.length; t++)
+        {
+            if (thresholdsT[t] == null) continue;
+            
+            int nbThresholds = thresholdsT[t].length;
+            
+            double[] sum = new double[nbThresholds];
+            int n = 0;
+            
+            for (int neighbor = Math.max(0, t - radius); neighbor <= Math.min(thresholdsT.length - 1, t + radius); neighbor++)
+            {
+                if (thresholdsT[neighbor] == null || thresholdsT[neighbor].length != nbThresholds) continue;
+                
+                for (int i = 0; i < nbThresholds; i++)
+                    sum[i] += thresholdsT[neighbor][i];
+                n++;
+            }
+            
+            for (int i = 0; i < nbThresholds; i++)
+                sum[i] /= n;
+            
+            smoothed[t] = sum;
+        }
+        
+        return smoothed;
+    }
+    
     /**
      * Threshold the given sequence channel with the specified thresholds, and returns the result as
      * a labeled sequence.<br>
@@ -302,33 +482,75 @@ public class Thresholder extends EzPlug implements Block
      * @return
      */
     public static Sequence threshold(Sequence input, int c, double[][] thresholdsT, boolean inPlace)
+    {
+        return threshold(input, c, thresholdsT, inPlace, 1);
+    }
+    
+    /**
+     * Threshold the given sequence channel with the specified thresholds, and returns the result as
+     * a labeled sequence. Slices (and tiles of very large slices) are labeled in parallel, and the
+     * result is identical to the sequential version. Unless the input is overwritten, the labels
+     * are stored with the smallest unsigned data type able to hold all classes (e.g. 8-bit for up
+     * to 255 thresholds). When overwriting the input, the labeling cannot be cancelled (see
+     * {@link CancellationToken}) once it has started, so that the input is either untouched or
+     * entirely labeled.<br>
+     * Note: thresholds are inclusive: values equal to a threshold are considered as "above"<br>
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @param inPlace
+     *            true to replace the input by the thresholded data
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @return the thresholded sequence (if inPlace is true, will return a reference to input)
+     */
+    public static Sequence threshold(final Sequence input, final int c, double[][] thresholdsT, final boolean inPlace, int nbThreads)
     {
         if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
         if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
         
+        long start = ThresholdMetrics.start();
+        
         Sequence output = inPlace ? input : new Sequence();
         
-        DataType dataType = input.getDataType_();
+        final DataType dataType = input.getDataType_();
         
         int length = input.getSizeX() * input.getSizeY();
-        
-        output.beginUpdate();
+        int[] tiles = SliceExecutor.getTileBounds(length);
         
         int maxClass = 0;
         
         for (int t = 0; t < input.getSizeT(); t++)
         {
-            double[] thresholds = thresholdsT[t];
+            if (thresholdsT[t] == null || thresholdsT[t].length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
             
-            if (thresholds == null || thresholds.length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+            if (thresholdsT[t].length > maxClass) maxClass = thresholdsT[t].length;
+        }
+        
+        // labels never exceed the number of thresholds
+        final DataType outType = inPlace ? dataType : ThresholdKernels.getLabelDataType(maxClass);
+        
+        output.beginUpdate();
+        
+        // prepare the output slices sequentially, then label them concurrently
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        for (int t = 0; t < input.getSizeT(); t++)
+        {
+            final double[] thresholds = thresholdsT[t];
             
-            double thr0 = thresholds[0];
-            int maxThresholdIndex = thresholds.length - 1;
-            if (thresholds.length > maxClass) maxClass = thresholds.length;
+            // 8/16-bit data with many classes: label each pixel with a single table access
+            long framePixels = (long) length * input.getSizeZ();
+            final short[] lookupTable = ThresholdKernels.isLookupTableWorthwhile(dataType, thresholds, framePixels)
+                    ? ThresholdKernels.createLookupTable(dataType, thresholds) : null;
             
             for (int z = 0; z < input.getSizeZ(); z++)
             {
-                Object _in2D = input.getDataXY(t, z, c);
+                final Object _in2D = input.getDataXY(t, z, c);
                 
                 IcyBufferedImage outSlice;
                 
@@ -338,51 +560,47 @@ public class Thresholder extends EzPlug implements Block
                 }
                 else
                 {
-                    outSlice = new IcyBufferedImage(input.getSizeX(), input.getSizeY(), 1, dataType);
+                    outSlice = new IcyBufferedImage(input.getSizeX(), input.getSizeY(), 1, outType);
                     output.setImage(t, z, outSlice);
                 }
                 
-                Object _out2D = outSlice.getDataXY(inPlace ? c : 0);
+                final Object _out2D = outSlice.getDataXY(inPlace ? c : 0);
                 
-                withTheNextPixel:
-                for (int i = 0; i < length; i++)
+                for (int tile = 0; tile < tiles.length - 1; tile++)
                 {
-                    double val = _in2D == null ? 0 : Array1DUtil.getValue(_in2D, i, dataType);
+                    final int from = tiles[tile], to = tiles[tile + 1];
                     
-                    // background
-                    if (val < thr0)
+                    tasks.add(new Callable<Object>()
                     {
-                        if (inPlace)
-                        {
-                            Array1DUtil.setValue(_out2D, i, dataType, 0);
-                        }
-                        continue withTheNextPixel;
-                    }
-                    // special 2-class case
-                    if (maxThresholdIndex == 0)
-                    {
-                        Array1DUtil.setValue(_out2D, i, dataType, 1);
-                        continue withTheNextPixel;
-                    }
-                    
-                    // default n-class case
-                    
-                    // browse thresholds from highest to lowest (above 1 to save one test)
-                    // assign the first positive match and break the loop
-                    for (int thr = maxThresholdIndex; thr > 0; thr--)
-                        if (val >= thresholds[thr])
+                        @Override
+                        public Object call()
                         {
-                            Array1DUtil.setValue(_out2D, i, dataType, thr + 1);
-                            continue withTheNextPixel;
+                            ThresholdKernels.label(_in2D, dataType, thresholds, lookupTable, _out2D, outType, from, to, from);
+                            return null;
                         }
-                        
-                    // last possible case: class 1
-                    Array1DUtil.setValue(_out2D, i, dataType, 1);
+                    });
                 }
             }
         }
         
-        output.endUpdate();
+        // in place: once started, the labeling is neither cancelled nor interrupted, so that the
+        // input is never left half-overwritten
+        CancellationToken.check();
+        CancellationToken previous = inPlace ? CancellationToken.attachUncancellable() : null;
+        
+        try
+        {
+            SliceExecutor.invokeAll(tasks, nbThreads);
+        }
+        finally
+        {
+            if (inPlace) CancellationToken.attach(previous);
+            
+            output.endUpdate();
+        }
+        
+        ThresholdMetrics.record(Phase.LABELING, start, getNumberOfPixels(input));
+        
         output.getColorModel().setComponentAbsBounds(inPlace ? c : 0, 0, maxClass);
         output.getColorModel().setComponentUserBounds(inPlace ? c : 0, 0, maxClass);
         // output.updateComponentsBounds(true, true);
@@ -390,6 +608,142 @@ public class Thresholder extends EzPlug implements Block
         return output;
     }
     
+    /**
+     * Threshold the given sequence channel with the specified thresholds, and returns the result as
+     * a source of labeled planes that are only computed when first read, and kept in a bounded
+     * cache (see {@link LazyLabelSource}). The labels are identical to those of
+     * {@link #threshold(Sequence, int, double[][], boolean, int)}.<br>
+     * Note: thresholds are inclusive: values equal to a threshold are considered as "above"<br>
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @param cacheSize
+     *            the maximum number of planes kept in memory
+     * @return the (lazily) labeled planes
+     */
+    public static LazyLabelSource thresholdLazy(Sequence input, int c, double[][] thresholdsT, int cacheSize)
+    {
+        if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
+        
+        return new LazyLabelSource(input, c, thresholdsT, cacheSize);
+    }
+    
+    /**
+     * Threshold the given sequence channel with the specified thresholds, and writes the result
+     * into a memory-mapped label file (see {@link MappedLabelStore} for the file format) rather
+     * than into a sequence, so that the labels are kept outside of the Java heap and can be
+     * reopened later with {@link MappedLabelStore#open(File, boolean)}.<br>
+     * Note: thresholds are inclusive: values equal to a threshold are considered as "above"<br>
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a list of thresholds for each time point of the input sequence
+     * @param file
+     *            the label file to create (or overwrite)
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @return the label store (open for reading and writing), which should be closed after use
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static MappedLabelStore threshold(Sequence input, int c, double[][] thresholdsT, File file, int nbThreads) throws IOException
+    {
+        if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
+        
+        PlaneSource source = new SequencePlaneSource(input, c);
+        
+        MappedLabelStore output = MappedLabelStore.create(file, input.getSizeX(), input.getSizeY(), input.getSizeZ(), input.getSizeT(),
+                StreamingThresholder.getLabelDataType(thresholdsT));
+        
+        try
+        {
+            new StreamingThresholder(source, 2 * nbThreads, nbThreads).label(thresholdsT, output);
+            output.flush();
+        }
+        catch (IOException e)
+        {
+            output.close();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            output.close();
+            throw e;
+        }
+        
+        return output;
+    }
+    
+    /**
+     * Threshold the given sequence channel with a single threshold per frame, and returns the
+     * result as a 1-bit packed binary mask, using 8 to 64 times less memory than a labeled
+     * sequence. Slices (and tiles of very large slices) are labeled in parallel.<br>
+     * Note: thresholds are inclusive: values equal to the threshold are set in the mask
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsT
+     *            a single threshold for each time point of the input sequence
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @return the binary mask
+     */
+    public static PackedBinaryMask thresholdBinary(final Sequence input, final int c, double[][] thresholdsT, int nbThreads)
+    {
+        if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
+        if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
+        
+        final DataType dataType = input.getDataType_();
+        
+        // tiles hold a multiple of 64 pixels, hence never share a word
+        int[] tiles = SliceExecutor.getTileBounds(input.getSizeX() * input.getSizeY());
+        
+        PackedBinaryMask output = new PackedBinaryMask(input.getSizeX(), input.getSizeY(), input.getSizeZ(), input.getSizeT());
+        
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        for (int t = 0; t < input.getSizeT(); t++)
+        {
+            if (thresholdsT[t] == null || thresholdsT[t].length != 1) throw new IllegalArgumentException("Thresholder: binary output requires a single threshold");
+            
+            final double threshold = thresholdsT[t][0];
+            
+            for (int z = 0; z < input.getSizeZ(); z++)
+            {
+                final Object _in2D = input.getDataXY(t, z, c);
+                final long[] _out2D = output.getWords(t, z);
+                
+                for (int tile = 0; tile < tiles.length - 1; tile++)
+                {
+                    final int from = tiles[tile], to = tiles[tile + 1];
+                    
+                    tasks.add(new Callable<Object>()
+                    {
+                        @Override
+                        public Object call()
+                        {
+                            ThresholdKernels.labelPacked(_in2D, dataType, threshold, _out2D, from, to);
+                            return null;
+                        }
+                    });
+                }
+            }
+        }
+        
+        SliceExecutor.invokeAll(tasks, nbThreads);
+        
+        return output;
+    }
+    
     /**
      * Threshold the given sequence channel with the specified thresholds, and returns the result as
      * a list of regions of interest (ROI).<br>
@@ -428,117 +782,158 @@ public class Thresholder extends EzPlug implements Block
      * @return
      */
     public static ROI[] threshold(Sequence input, int c, double[][] thresholdsOverTime)
+    {
+        return threshold(input, c, thresholdsOverTime, 1);
+    }
+    
+    /**
+     * Threshold the given sequence channel with the specified thresholds, and returns the result as
+     * a list of regions of interest (ROI). Slices (and tiles of very large slices) are labeled in
+     * parallel, and the result is identical to the sequential version.<br>
+     * Note: thresholds are inclusive: values equal to a threshold are considered as "above"<br>
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsOverTime
+     *            a list of thresholds for each time point of the input sequence
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @return one ROI per class present in each time point
+     */
+    public static ROI[] threshold(Sequence input, int c, double[][] thresholdsOverTime, int nbThreads)
+    {
+        return threshold(input, c, thresholdsOverTime, nbThreads, 0, Double.POSITIVE_INFINITY);
+    }
+    
+    /**
+     * Threshold the given sequence channel with the specified thresholds, and returns the result as
+     * a list of regions of interest (ROI), keeping only the ROI within the given size range. Each
+     * slice is scanned row by row into run-length encoded masks, so that the size of each ROI is
+     * known before it is built.<br>
+     * Note: thresholds are inclusive: values equal to a threshold are considered as "above"<br>
+     * 
+     * @param input
+     *            the sequence to threshold
+     * @param c
+     *            the channel to threshold
+     * @param thresholdsOverTime
+     *            a list of thresholds for each time point of the input sequence
+     * @param nbThreads
+     *            the number of threads to use (1 to run sequentially)
+     * @param minSize
+     *            the minimum number of points of the output ROI
+     * @param maxSize
+     *            the maximum number of points of the output ROI
+     * @return one ROI per class present in each time point, within the given size range
+     */
+    public static ROI[] threshold(Sequence input, int c, double[][] thresholdsOverTime, int nbThreads, double minSize, double maxSize)
     {
         if (input == null) throw new IllegalArgumentException("Thresholder: no input sequence given");
         if (c >= input.getSizeC()) throw new IllegalArgumentException("Thresholder: input sequence has no channel #" + c);
         
         int sizeT = input.getSizeT();
-        int sizeX = input.getSizeX();
-        int sizeY = input.getSizeY();
-        // int sizeC = input.getSizeC();
-        int sliceSize = sizeX * sizeY;
+        int nbBands = ClassMasks.getNbBands(input.getSizeX(), input.getSizeY());
         
         ArrayList<ROI> output = new ArrayList<ROI>(sizeT);
         
-        DataType dataType = input.getDataType_();
+        // frames are processed in batches holding just enough slices to keep all threads busy
+        int t = 0;
         
-        for (int t = 0; t < sizeT; t++)
+        while (t < sizeT)
         {
-            double[] thresholds = thresholdsOverTime[t];
+            int firstT = t;
+            int nbSlices = 0;
+            
+            do
+            {
+                nbSlices += input.getSizeZ(t);
+                t++;
+            }
+            while (t < sizeT && nbSlices * nbBands < 2 * nbThreads);
             
-            if (thresholds == null || thresholds.length == 0) throw new IllegalArgumentException("Thresholder: no thresholds given");
+            ClassMasks[][] masks = ClassMasks.encode(input, c, thresholdsOverTime, firstT, t, nbThreads);
             
-            int depth = input.getSizeZ(t);
+            long start = ThresholdMetrics.start();
             
-            int lastThresholdIndex = thresholds.length - 1;
+            for (int frame = firstT; frame < t; frame++)
+                addROIs(output, masks[frame - firstT], thresholdsOverTime[frame], frame, minSize, maxSize);
+            
+            ThresholdMetrics.record(Phase.ROI_CONSTRUCTION, start, 0);
+        }
+        
+        return output.toArray(new ROI[output.size()]);
+    }
+    
+    /**
+     * @return the number of pixels of a channel of the given sequence
+     */
+    private static long getNumberOfPixels(Sequence sequence)
+    {
+        long pixels = 0;
+        
+        for (int t = 0; t < sequence.getSizeT(); t++)
+            pixels += (long) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ(t);
             
-            // initialize one mask per class
-            BooleanMask2D[][] masks = new BooleanMask2D[depth][thresholds.length];
-            double thr0 = thresholds[0];
+        return pixels;
+    }
+    
+    /**
+     * Builds one ROI per class from the masks of a given frame, and adds them to the output list.
+     * Classes absent from the frame, or whose size is out of range, produce no ROI
+     */
+    private static void addROIs(List<ROI> output, ClassMasks[] masks, double[] thresholds, int t, double minSize, double maxSize)
+    {
+        int depth = masks.length;
+        
+        for (int thr = 0; thr < thresholds.length; thr++)
+        {
+            // size check (directly on the encoded masks)
+            double size = 0;
+            for (int z = 0; z < depth; z++)
+                size += masks[z].getNumberOfPoints(thr);
+                
+            if (size == 0 || size < minSize || size > maxSize) continue;
             
-            // keep a list of valid (non-empty slices)
-            boolean[] isValidSlice = new boolean[depth];
+            ROI3DArea area3D = null;
+            ROI2DArea area2D = null;
             
             for (int z = 0; z < depth; z++)
             {
-                for (int thr = 0; thr < thresholds.length; thr++)
-                    masks[z][thr] = new BooleanMask2D(new Rectangle(sizeX, sizeY), new boolean[sliceSize]);
-                    
-                BooleanMask2D[] masks2D = masks[z];
+                if (!masks[z].contains(thr)) continue;
                 
-                Object _in2D = input.getDataXY(t, z, c);
+                area2D = new ROI2DArea(masks[z].getMask(thr));
                 
-                withTheNextPixel:
-                for (int i = 0; i < sliceSize; i++)
+                if (depth > 1)
                 {
-                    double val = Array1DUtil.getValue(_in2D, i, dataType);
-                    
-                    // background
-                    if (val < thr0) continue withTheNextPixel;
-                    
-                    // treat the n-class case first
-                    if (lastThresholdIndex > 0)
+                    if (area3D == null)
                     {
-                        // browse thresholds from highest to lowest (above 1 to save one test)
-                        // assign the first positive match and break the loop
-                        for (int thr = lastThresholdIndex; thr > 0; thr--)
-                            if (val >= thresholds[thr])
-                            {
-                                masks2D[thr].mask[i] = true;
-                                if (!isValidSlice[z]) isValidSlice[z] = true;
-                                continue withTheNextPixel;
-                            }
+                        area3D = new ROI3DArea();
+                        area3D.setName("Threshold: " + thresholds[thr]);
+                        area3D.setT(t);
+                        // area3D.setC(c);
                     }
-                    
-                    // last class (1 => index 0)
-                    masks2D[0].mask[i] = true;
-                    if (!isValidSlice[z]) isValidSlice[z] = true;
+                    area3D.setSlice(z, area2D, false);
+                }
+                else
+                {
+                    area2D.setName("Threshold: " + thresholds[thr]);
+                    area2D.setT(t);
+                    // area2D.setC(c);
+                    // area2D.setZ(z);
                 }
             }
             
-            for (int thr = 0; thr < thresholds.length; thr++)
+            if (area3D != null)
             {
-                ROI3DArea area3D = null;
-                ROI2DArea area2D = null;
-                
-                for (int z = 0; z < depth; z++)
-                {
-                    if (!isValidSlice[z]) continue;
-                    
-                    area2D = new ROI2DArea(masks[z][thr]);
-                    
-                    if (depth > 1)
-                    {
-                        if (area3D == null)
-                        {
-                            area3D = new ROI3DArea();
-                            area3D.setName("Threshold: " + thresholds[thr]);
-                            area3D.setT(t);
-                            // area3D.setC(c);
-                        }
-                        area3D.setSlice(z, area2D, false);
-                    }
-                    else
-                    {
-                        area2D.setName("Threshold: " + thresholds[thr]);
-                        area2D.setT(t);
-                        // area2D.setC(c);
-                        // area2D.setZ(z);
-                    }
-                }
-                
-                if (area3D != null)
-                {
-                    output.add(area3D);
-                }
-                else if (area2D != null)
-                {
-                    output.add(area2D);
-                }
+                output.add(area3D);
+            }
+            else if (area2D != null)
+            {
+                output.add(area2D);
             }
         }
-        
-        return output.toArray(new ROI[output.size()]);
     }
     
     public void clean()
@@ -554,6 +949,8 @@ public class Thresholder extends EzPlug implements Block
         inputMap.add("channel", channel.getVariable());
         inputMap.add("Manual thresholds", thresholds.getVariable());
         inputMap.add("Treat as percentiles", pct.getVariable());
+        inputMap.add("Connectivity", connectivity.getVariable());
+        inputMap.add("Threads", nbThreads.getVariable());
     }
     
     @Override
@@ -561,6 +958,8 @@ public class Thresholder extends EzPlug implements Block
     {
         outputMap.add("output", outLabels);
         outputMap.add("ROI", outROI);
+        outputMap.add("objects", outObjects);
+        outputMap.add("run summary", outSummary);
     }
     
 }